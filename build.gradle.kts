@@ -15,6 +15,9 @@ tasks.compileJava {
 }
 
 val kotlinStdlib by configurations.creating
+val kotlinReflect by configurations.creating {
+    isTransitive = false
+}
 
 repositories {
     maven(url = "https://libraries.minecraft.net/")
@@ -29,6 +32,7 @@ dependencies {
     testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine")
 
     kotlinStdlib(kotlin("stdlib-jdk7", kotlinVersion))
+    kotlinReflect(kotlin("reflect", kotlinVersion))
 }
 
 val manifestJar by tasks.creating(Jar::class) {
@@ -43,15 +47,25 @@ val manifestJar by tasks.creating(Jar::class) {
 
     manifest {
         val packageNameSuffix = """-[\d.]+\.jar$""".toRegex()
+        val artifacts = kotlinStdlib.resolvedConfiguration.resolvedArtifacts
         attributes(mapOf(
-            "MCKT-MF-Version" to "1",
+            "MCKT-MF-Version" to "2",
             "MCKT-KT-Version" to kotlinVersion,
-            "MCKT-KT-Parts" to kotlinStdlib.joinToString(",") { packageNameSuffix.replace(it.name, "") },
-            "MCKT-KT-Jars" to kotlinStdlib.joinToString(",") { "libs/${it.name}" }
+            "MCKT-KT-Parts" to artifacts.joinToString(",") { packageNameSuffix.replace(it.file.name, "") },
+            "MCKT-KT-Jars" to artifacts.joinToString(",") { "libs/${it.file.name}" },
+            "MCKT-KT-Jars-SHA1" to artifacts.joinToString(",") { sha1Of(it.file) },
+            "MCKT-KT-Jars-Size" to artifacts.joinToString(",") { "${it.file.length()}" },
+            "MCKT-KT-Jars-CRC" to artifacts.joinToString(",") { crc32Of(it.file) },
+            "MCKT-KT-Jars-Version" to artifacts.joinToString(",") { it.moduleVersion.id.version }
         ))
     }
 }
 
+fun sha1Of(file: File): String =
+    java.security.MessageDigest.getInstance("SHA-1").digest(file.readBytes()).joinToString("") { "%02x".format(it) }
+
+fun crc32Of(file: File): String = java.util.zip.CRC32().apply { update(file.readBytes()) }.value.toString(16)
+
 val kotlinStdlibJar by tasks.creating(Zip::class) {
     archiveBaseName.set("kotlin-stdlib")
     archiveVersion.set("")
@@ -63,8 +77,51 @@ val kotlinStdlibJar by tasks.creating(Zip::class) {
     }
 }
 
+val kotlinReflectJar by tasks.creating(Copy::class) {
+    from(kotlinReflect)
+    into(buildDir.resolve("libs"))
+    rename { "kotlin-reflect.jar" }
+}
+
 tasks.getByName<Test>("test") {
-    useJUnitPlatform()
+    useJUnitPlatform {
+        excludeTags("scaling")
+    }
     dependsOn(manifestJar)
     dependsOn(kotlinStdlibJar)
+    dependsOn(kotlinReflectJar)
+}
+
+val scalingTest by tasks.creating(Test::class) {
+    group = "verification"
+    description = "Runs tests checks resolve time and memory grow linearly with the count of mods."
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    useJUnitPlatform {
+        includeTags("scaling")
+    }
+    dependsOn(manifestJar)
+    dependsOn(kotlinStdlibJar)
+    (project.findProperty("scalingSizes") as String?)?.let { systemProperty("mckt.scaling.sizes", it) }
+}
+
+val jmh by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+    runtimeClasspath += output + compileClasspath
+}
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.27")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.27")
+}
+
+val jmhRun by tasks.creating(JavaExec::class) {
+    group = "verification"
+    description = "Runs JMH benchmarks. Pass JMH options with -PjmhArgs=\"ScanBenchmark -f 1\"."
+    dependsOn(kotlinStdlibJar)
+    classpath = jmh.runtimeClasspath
+    main = "org.openjdk.jmh.Main"
+    systemProperty("mckt.benchmark.kotlin-stdlib", kotlinStdlibJar.archiveFile.get().asFile.absolutePath)
+    systemProperty("mckt.benchmark.kotlin-version", kotlinVersion)
+    args = (project.findProperty("jmhArgs") as String?)?.split(" ")?.filter { it.isNotEmpty() } ?: listOf()
 }
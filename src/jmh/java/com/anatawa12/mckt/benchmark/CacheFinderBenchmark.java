@@ -0,0 +1,93 @@
+package com.anatawa12.mckt.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks finding kotlin-stdlib in gradle cache and MCKTResolver cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CacheFinderBenchmark {
+    /**
+     * Whether the {@code .stamp} of the cached jar is kept. If not, the jar is hashed for each lookup.
+     */
+    @Param({"true", "false"})
+    public boolean stamp;
+
+    /**
+     * The count of artifacts other than kotlin in the gradle cache.
+     */
+    @Param({"500"})
+    public int otherArtifacts;
+
+    File home;
+    String userHome;
+    String version;
+    File cached;
+    Object warmGradleFinder;
+    Object mcktFinder;
+
+    @Setup
+    public void setup() throws IOException {
+        version = Fixtures.kotlinVersion();
+        home = Fixtures.createTempDir("mckt-benchmark");
+        userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+
+        Fixtures.gradleCache(home, otherArtifacts);
+        cached = Mckt.getCacheFile("KotlinStdlib", version);
+        Fixtures.libraryJar(0, cached);
+        Fixtures.writeText(new File(cached + ".sha1"), Fixtures.sha1(cached));
+
+        warmGradleFinder = Mckt.newFinder("GradleKotlinCacheFinder");
+        mcktFinder = Mckt.newFinder("MCKTKotlinCacheFinder");
+    }
+
+    @Setup(Level.Invocation)
+    public void removeStamp() {
+        if (!stamp) new File(cached + ".stamp").delete();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setProperty("user.home", userHome);
+        Fixtures.deleteRecursively(home);
+    }
+
+    @Benchmark
+    public File mcktFind() {
+        return found(Mckt.find(mcktFinder, "KotlinStdlib", version));
+    }
+
+    /**
+     * Finds with new finder so the gradle cache is listed for each lookup.
+     */
+    @Benchmark
+    public File gradleFindCold() {
+        return found(Mckt.find(Mckt.newFinder("GradleKotlinCacheFinder"), "KotlinStdlib", version));
+    }
+
+    @Benchmark
+    public File gradleFindWarm() {
+        return found(Mckt.find(warmGradleFinder, "KotlinStdlib", version));
+    }
+
+    static File found(File file) {
+        if (file == null) throw new IllegalStateException("not found");
+        return file;
+    }
+}
@@ -0,0 +1,296 @@
+package com.anatawa12.mckt.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates jars for benchmarks. The real kotlin-stdlib is passed by the build with
+ * {@code mckt.benchmark.kotlin-stdlib} and {@code mckt.benchmark.kotlin-version}.
+ * Other libraries are replaced with jars of random class-like entries of the similar size.
+ */
+final class Fixtures {
+    static final String[] LIBRARIES = {
+            "KotlinStdlib", "KotlinStdlibJdk7", "KotlinStdlibJdk8", "KotlinStdlibCommon", "KotlinReflect", "JetbrainsAnnotation",
+    };
+    static final String[] ARTIFACTS = {
+            "kotlin-stdlib", "kotlin-stdlib-jdk7", "kotlin-stdlib-jdk8", "kotlin-stdlib-common", "kotlin-reflect", "annotations",
+    };
+    static final String[] GROUPS = {
+            "org.jetbrains.kotlin", "org.jetbrains.kotlin", "org.jetbrains.kotlin", "org.jetbrains.kotlin", "org.jetbrains.kotlin", "org.jetbrains",
+    };
+    // the count of entries in stand-in jars. about 1.5 KiB per entry
+    static final int[] STAND_IN_ENTRIES = { 0, 16, 16, 150, 2000, 32 };
+    static final String[] DETECT_ENTRIES = {
+            null,
+            "kotlin/internal/jdk7/JDK7PlatformImplementations.class",
+            "kotlin/internal/jdk8/JDK8PlatformImplementations.class",
+            "kotlin/Pair.kotlin_metadata",
+            "kotlin/reflect/ReflectJvmMapping.class",
+            "org/jetbrains/annotations/Nullable.class",
+    };
+
+    private Fixtures() {
+    }
+
+    static File kotlinStdlib() {
+        String path = System.getProperty("mckt.benchmark.kotlin-stdlib");
+        if (path == null) throw new IllegalStateException("mckt.benchmark.kotlin-stdlib is not specified. run with gradle jmh task");
+        return new File(path);
+    }
+
+    static String kotlinVersion() {
+        String version = System.getProperty("mckt.benchmark.kotlin-version");
+        if (version == null) throw new IllegalStateException("mckt.benchmark.kotlin-version is not specified. run with gradle jmh task");
+        return version;
+    }
+
+    static String versionOf(int library) {
+        return "JetbrainsAnnotation".equals(LIBRARIES[library]) ? "13.0" : kotlinVersion();
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) throw new IOException("can't create " + dir);
+        return dir;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * @return a mod with kotlin-stdlib classes shadowed in it.
+     */
+    static File shadedMod(File file, int modClasses) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            writeFiller(out, "com/example/shaded/", modClasses, 1);
+            ZipFile stdlib = new ZipFile(kotlinStdlib());
+            try {
+                Enumeration<? extends ZipEntry> entries = stdlib.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.isDirectory() || entry.getName().startsWith("META-INF/")) continue;
+                    out.putNextEntry(new ZipEntry(entry.getName()));
+                    InputStream in = stdlib.getInputStream(entry);
+                    try {
+                        copy(in, out);
+                    } finally {
+                        in.close();
+                    }
+                    out.closeEntry();
+                }
+            } finally {
+                stdlib.close();
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return a mod with kotlin-stdlib jar in the jar and MCKT manifest.
+     */
+    static File manifestMod(File file, int modClasses) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("MCKT-MF-Version", "1");
+        attributes.putValue("MCKT-KT-Version", kotlinVersion());
+        attributes.putValue("MCKT-KT-Parts", "kotlin-stdlib");
+        attributes.putValue("MCKT-KT-Jars", "libs/kotlin-stdlib.jar");
+
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            manifest.write(out);
+            out.closeEntry();
+            writeFiller(out, "com/example/manifest/", modClasses, 2);
+
+            // jars in jars are usually stored
+            byte[] stdlib = readAll(kotlinStdlib());
+            CRC32 crc = new CRC32();
+            crc.update(stdlib);
+            ZipEntry entry = new ZipEntry("libs/kotlin-stdlib.jar");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stdlib.length);
+            entry.setCrc(crc.getValue());
+            out.putNextEntry(entry);
+            out.write(stdlib);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return a mod requires kotlin-reflect and annotations which are not in the mod.
+     */
+    static File downloadingMod(File file, int modClasses) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("MCKT-MF-Version", "1");
+        attributes.putValue("MCKT-KT-Version", kotlinVersion());
+        attributes.putValue("MCKT-KT-Parts", "kotlin-reflect,annotations");
+
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            manifest.write(out);
+            out.closeEntry();
+            writeFiller(out, "com/example/downloading/", modClasses, 3);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return the jar of the library. real one for kotlin-stdlib, a stand-in for others.
+     */
+    static File libraryJar(int library, File file) throws IOException {
+        file.getParentFile().mkdirs();
+        if (STAND_IN_ENTRIES[library] == 0) {
+            copy(kotlinStdlib(), file);
+            return file;
+        }
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            out.putNextEntry(new ZipEntry(DETECT_ENTRIES[library]));
+            out.closeEntry();
+            writeFiller(out, "stand/in/" + ARTIFACTS[library].replace('-', '_') + "/", STAND_IN_ENTRIES[library], 100 + library);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Creates a maven repository with all libraries and {@code .sha1}s.
+     */
+    static File repository(File dir) throws IOException {
+        for (int i = 0; i < LIBRARIES.length; i++) {
+            String version = versionOf(i);
+            File jar = new File(dir, GROUPS[i].replace('.', '/') + '/' + ARTIFACTS[i] + '/' + version
+                    + '/' + ARTIFACTS[i] + '-' + version + ".jar");
+            libraryJar(i, jar);
+            writeText(new File(jar + ".sha1"), sha1(jar));
+        }
+        return dir;
+    }
+
+    /**
+     * Creates gradle cache with all libraries and {@code otherArtifacts} other artifacts
+     * so listing the cache is as slow as real one.
+     */
+    static File gradleCache(File home, int otherArtifacts) throws IOException {
+        File root = new File(home, ".gradle/caches/modules-2/files-2.1");
+        for (int i = 0; i < LIBRARIES.length; i++) {
+            String version = versionOf(i);
+            File jar = libraryJar(i, new File(root, GROUPS[i] + '/' + ARTIFACTS[i] + '/' + version + "/0123456789abcdef/"
+                    + ARTIFACTS[i] + '-' + version + ".jar"));
+            writeText(new File(root, GROUPS[i] + '/' + ARTIFACTS[i] + '/' + version + "/fedcba9876543210/"
+                    + ARTIFACTS[i] + '-' + version + "-sources.jar"), jar.getName());
+        }
+        for (int i = 0; i < otherArtifacts; i++) {
+            writeText(new File(root, "com.example/artifact" + i + "/1.0/0123456789abcdef/artifact" + i + "-1.0.jar"), "");
+        }
+        return root;
+    }
+
+    static void writeFiller(ZipOutputStream out, String prefix, int count, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] buffer = new byte[4096];
+        for (int i = 0; i < count; i++) {
+            out.putNextEntry(new ZipEntry(prefix + "Class" + i + ".class"));
+            int size = 512 + random.nextInt(2048);
+            // class files are compressed about a half
+            for (int j = 0; j < size; j++) {
+                buffer[j] = (byte) (j % 2 == 0 ? random.nextInt(256) : random.nextInt(4));
+            }
+            out.write(buffer, 0, size);
+            out.closeEntry();
+        }
+    }
+
+    static String sha1(File file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(readAll(file));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] readAll(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            copy(in, out);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    static void writeText(File file, String text) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
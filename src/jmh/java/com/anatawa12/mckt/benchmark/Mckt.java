@@ -0,0 +1,140 @@
+package com.anatawa12.mckt.benchmark;
+
+import net.minecraft.launchwrapper.Launch;
+import net.minecraft.launchwrapper.LaunchClassLoader;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.jar.JarFile;
+
+/**
+ * Calls MCKTResolver in the default package, which can't be imported from benchmarks.
+ * JMH doesn't allow benchmarks in the default package.
+ * The cost of reflective calls is negligible compared to the file operations benchmarked.
+ */
+final class Mckt {
+    static final Class<?> resolverClass;
+    static final Class<?> libraryClass;
+    static final Constructor<?> newResolver;
+    static final Constructor<?> newDigester;
+    static final Method collectKotlinInMod;
+    static final Method detectKotlinVersion;
+    static final Method runResolve;
+    static final Method find;
+    static final Method getCacheFile;
+    static final Method copyStream;
+
+    static {
+        if (Launch.classLoader == null)
+            Launch.classLoader = new LaunchClassLoader(new URL[0]);
+        try {
+            Class<?> main = Class.forName("MCKTResolver");
+            // in game, MCKTResolver is initialized before any of nested classes
+            main.getMethod("getDouble", String.class).invoke(null, "");
+            resolverClass = Class.forName("MCKTResolver$Resolver");
+            libraryClass = Class.forName("MCKTResolver$KotlinLibrary");
+            newResolver = accessible(resolverClass.getDeclaredConstructor());
+            newDigester = accessible(Class.forName("MCKTResolver$DigesterOutputStream").getDeclaredConstructor(MessageDigest.class));
+            collectKotlinInMod = accessible(resolverClass.getDeclaredMethod("collectKotlinInMod", File.class));
+            detectKotlinVersion = accessible(resolverClass.getDeclaredMethod("detectKotlinVersion", JarFile.class));
+            runResolve = accessible(resolverClass.getDeclaredMethod("runResolve", boolean.class));
+            find = accessible(Class.forName("MCKTResolver$KotlinCacheFinder").getDeclaredMethod("find", libraryClass, String.class));
+            getCacheFile = accessible(Class.forName("MCKTResolver$MCKTKotlinCacheFinder").getDeclaredMethod("getCacheFile", libraryClass, String.class));
+            copyStream = accessible(main.getDeclaredMethod("copy", InputStream.class, OutputStream[].class));
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Mckt() {
+    }
+
+    static Object newResolver() {
+        return invoke(newResolver);
+    }
+
+    static void collectKotlinInMod(Object resolver, File mod) {
+        invoke(collectKotlinInMod, resolver, mod);
+    }
+
+    static String detectKotlinVersion(Object resolver, JarFile jar) {
+        return (String) invoke(detectKotlinVersion, resolver, jar);
+    }
+
+    static void runResolve(Object resolver) {
+        invoke(runResolve, resolver, true);
+    }
+
+    /**
+     * @param simpleName the name of the finder class like {@code GradleKotlinCacheFinder}
+     */
+    static Object newFinder(String simpleName) {
+        try {
+            return invoke(accessible(Class.forName("MCKTResolver$" + simpleName).getDeclaredConstructor()));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static File find(Object finder, String library, String version) {
+        return (File) invoke(find, finder, library(library), version);
+    }
+
+    static File getCacheFile(String library, String version) {
+        return (File) invoke(getCacheFile, null, library(library), version);
+    }
+
+    static OutputStream newDigester(MessageDigest digest) {
+        return (OutputStream) invoke(newDigester, digest);
+    }
+
+    static void copy(InputStream in, OutputStream... outs) {
+        invoke(copyStream, null, in, outs);
+    }
+
+    /**
+     * @param name the name of the constant like {@code KotlinStdlib}
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object library(String name) {
+        return Enum.valueOf((Class) libraryClass, name);
+    }
+
+    private static <T extends java.lang.reflect.AccessibleObject> T accessible(T object) {
+        object.setAccessible(true);
+        return object;
+    }
+
+    private static Object invoke(Constructor<?> constructor, Object... args) {
+        try {
+            return constructor.newInstance(args);
+        } catch (InvocationTargetException e) {
+            throw rethrow(e);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object invoke(Method method, Object receiver, Object... args) {
+        try {
+            return method.invoke(receiver, args);
+        } catch (InvocationTargetException e) {
+            throw rethrow(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static RuntimeException rethrow(InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        throw new IllegalStateException(cause);
+    }
+}
@@ -0,0 +1,83 @@
+package com.anatawa12.mckt.benchmark;
+
+import net.minecraft.launchwrapper.Launch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks whole resolving with three kotlin mods and a local maven repository
+ * which stands in for maven central.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ResolveBenchmark {
+    static final String repositoriesPropName = "com.anatawa12.minecraft-kotlin-resolver.repositories";
+
+    /**
+     * {@code cold} removes the cache of MCKTResolver before each resolve so libraries are downloaded
+     * and jars in jars are extracted. {@code warm} keeps the cache.
+     */
+    @Param({"cold", "warm"})
+    public String cache;
+
+    /**
+     * The count of the classes of each mod.
+     */
+    @Param({"2000"})
+    public int modClasses;
+
+    File dir;
+    File home;
+    String userHome;
+    File minecraftHome;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Fixtures.createTempDir("mckt-benchmark");
+        home = new File(dir, "home");
+        minecraftHome = new File(dir, "minecraft");
+        File mods = new File(minecraftHome, "mods");
+        mods.mkdirs();
+        Fixtures.shadedMod(new File(mods, "shaded.jar"), modClasses);
+        Fixtures.manifestMod(new File(mods, "manifest.jar"), modClasses);
+        Fixtures.downloadingMod(new File(mods, "downloading.jar"), modClasses);
+        File repository = Fixtures.repository(new File(dir, "repository"));
+
+        userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        System.setProperty(repositoriesPropName, repository.toURI().toString());
+        Launch.minecraftHome = minecraftHome;
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCache() {
+        if ("cold".equals(cache)) Fixtures.deleteRecursively(new File(home, ".cache"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setProperty("user.home", userHome);
+        System.clearProperty(repositoriesPropName);
+        Fixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public Object runResolve() {
+        Object resolver = Mckt.newResolver();
+        Mckt.runResolve(resolver);
+        return resolver;
+    }
+}
@@ -0,0 +1,70 @@
+package com.anatawa12.mckt.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+/**
+ * Benchmarks scanning a mod for kotlin.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScanBenchmark {
+    /**
+     * {@code shaded} for a mod with kotlin-stdlib classes in it,
+     * {@code manifest} for a mod with kotlin-stdlib jar and MCKT manifest.
+     */
+    @Param({"shaded", "manifest"})
+    public String mod;
+
+    /**
+     * The count of the classes of the mod itself.
+     */
+    @Param({"2000"})
+    public int modClasses;
+
+    File dir;
+    File modFile;
+    JarFile stdlib;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Fixtures.createTempDir("mckt-benchmark");
+        File file = new File(dir, mod + ".jar");
+        if ("shaded".equals(mod))
+            modFile = Fixtures.shadedMod(file, modClasses);
+        else
+            modFile = Fixtures.manifestMod(file, modClasses);
+        stdlib = new JarFile(Fixtures.kotlinStdlib());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        stdlib.close();
+        Fixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public Object collectKotlinInMod() {
+        Object resolver = Mckt.newResolver();
+        Mckt.collectKotlinInMod(resolver, modFile);
+        return resolver;
+    }
+
+    @Benchmark
+    public String detectKotlinVersion() {
+        return Mckt.detectKotlinVersion(Mckt.newResolver(), stdlib);
+    }
+}
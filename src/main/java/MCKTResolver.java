@@ -9,33 +9,83 @@ import net.minecraftforge.common.ForgeVersion;
 import java.awt.*;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
 
 /**
  * <p>
@@ -51,6 +101,7 @@ import java.util.jar.Manifest;
  * <lo>
  *    <li>jars in mods directory (finds 'kotlin.Pair' and 'kotlin.KotlinVersion' class)</li>
  *    <li>jar file specified in MANIFEST.MF</li>
+ *    <li>jars in jars in mods directory like Forge's ContainedDeps (read in memory)</li>
  * </lo>
  *
  * <p>
@@ -75,15 +126,76 @@ public class MCKTResolver {
 
    static {
       // load classes first
-      ResolveCaller.staticInit();
+      try {
+         ResolveCaller.staticInit();
+         LaunchClassPath.staticInit();
+      } catch (NoClassDefFoundError ignored) {
+         // launchwrapper is not in the class path if run by main
+      }
       Resolver.staticInit();
+      ModScanResult.staticInit();
+      ModScanIndex.staticInit();
+      ModScanIndex.Record.staticInit();
+      FileStamp.staticInit();
       SingleJarClassLoader.staticInit();
+      JarFileEntrySource.staticInit();
+      JarProbe.staticInit();
+      FileZipSource.staticInit();
+      ZipDirectoryEntry.staticInit();
+      ZipDirectory.staticInit();
+      ByteBufferZipSource.staticInit();
+      SliceZipSource.staticInit();
+      StreamedJarEntrySource.staticInit();
+      NestedJar.staticInit();
+      NestedJarScanner.staticInit();
+      JarInJarLocation.staticInit();
+      CacheLock.staticInit();
+      CacheCleaner.staticInit();
+      ExtractedJarCache.staticInit();
+      MergedRuntimeJar.staticInit();
+      ZipEntryInputStream.staticInit();
+      NestedJarURLStreamHandler.staticInit();
+      NestedJarURLConnection.staticInit();
+      LazyLibraryURLStreamHandler.staticInit();
+      LazyLibraryURLStreamHandler.LazyLibrary.staticInit();
+      KotlinVersionClassReader.staticInit();
+      KotlinVersionClassReader.ClassFile.staticInit();
       GradleKotlinCacheFinder.staticInit();
       MavenKotlinCacheFinder.staticInit();
       MCKTKotlinCacheFinder.staticInit();
+      LocalRepositoryIndex.staticInit();
+      CacheLookup.staticInit();
+      ResolveMetrics.staticInit();
+      ResolveLock.staticInit();
+      ClassWarmUp.staticInit();
+      MavenRepositories.staticInit();
       DigesterOutputStream.staticInit();
       KotlinLibrary.staticInit();
       KotlinVersion.staticInit();
+      WorkerThreadFactory.staticInit();
+   }
+
+   /**
+    * Resolves kotlin for a mods directory without launching the game, for example while building a server image.
+    * This scans mods, finds caches, downloads and extracts jars and writes the lockfile,
+    * so the next launch with the same mods and the {@code lockfile} property restores the class path
+    * from the lockfile without them. launchwrapper is not required in the class path.
+    *
+    * <p>Usage: {@code java -cp <jar with MCKTResolver> MCKTResolver <mods directory>}</p>
+    */
+   public static void main(String[] args) throws IOException {
+      if (args.length != 1) {
+         System.err.println("usage: MCKTResolver <mods directory>");
+         System.exit(2);
+         return;
+      }
+      File modsDir = new File(args[0]);
+      if (!modsDir.isDirectory()) {
+         System.err.println(modsDir + " is not a directory");
+         System.exit(2);
+         return;
+      }
+      new Resolver(Resolver.modsDirsOf(modsDir)).prepare();
    }
 
    @SuppressWarnings("unused")
@@ -117,6 +229,33 @@ public class MCKTResolver {
       return null;
    }
 
+   static Integer getInteger(String nm) {
+      String v = null;
+      try {
+         v = System.getProperty(nm);
+      } catch (IllegalArgumentException ignored) {
+      } catch (NullPointerException ignored) {
+      }
+      if (v != null) {
+         try {
+            return Integer.parseInt(v.trim());
+         } catch (NumberFormatException ignored) {
+         }
+      }
+      return null;
+   }
+
+   static boolean getBoolean(String nm, boolean defaultValue) {
+      String v = null;
+      try {
+         v = System.getProperty(nm);
+      } catch (IllegalArgumentException ignored) {
+      } catch (NullPointerException ignored) {
+      }
+      if (v == null) return defaultValue;
+      return Boolean.parseBoolean(v.trim());
+   }
+
    private static boolean needUpdate(Double version) {
       if (version == null) return true;
       return version < RESOLVER_VERSION;
@@ -187,6 +326,25 @@ public class MCKTResolver {
               new MavenKotlinCacheFinder(),
               new MCKTKotlinCacheFinder(),
       };
+      MavenRepositories repositories;
+      CacheLookup cacheLookup;
+      final ResolveMetrics metrics = new ResolveMetrics();
+      // the jar in jar URLs of libraries loaded with NestedJarURLStreamHandler
+      final EnumMap<KotlinLibrary, URL> nestedSources = new EnumMap<KotlinLibrary, URL>(KotlinLibrary.class);
+      // the URLs in mods of deferred libraries. null if the library will be downloaded.
+      final EnumMap<KotlinLibrary, URL> deferredSources = new EnumMap<KotlinLibrary, URL>(KotlinLibrary.class);
+      // the SHA-1 of bundled jars declared by MCKT manifest version 2
+      final EnumMap<KotlinLibrary, String> bundledSha1 = new EnumMap<KotlinLibrary, String>(KotlinLibrary.class);
+      // the directories to find mods in
+      final List<File> modsDirs;
+
+      Resolver() {
+         this(modsDirsOf(new File(LaunchClassPath.getMinecraftHome(), "mods")));
+      }
+
+      Resolver(List<File> modsDirs) {
+         this.modsDirs = modsDirs;
+      }
 
       static void runResolve(List<String> args, File gameDir, File assetsDir, String profile) throws MalformedURLException {
          boolean nogui = GraphicsEnvironment.isHeadless();
@@ -200,104 +358,423 @@ public class MCKTResolver {
       }
 
       void runResolve(boolean nogui) throws MalformedURLException {
-         collectKotlinMods();
+         List<File> mods = listMods();
+         File lockFile = ResolveLock.getFile(modsDirs.get(0));
+         ResolveLock lock = getBoolean(lockfilePropName, false) ? ResolveLock.of(lockFile, mods) : null;
+         if (lock != null) {
+            long start = System.nanoTime();
+            List<URL> locked = lock.restore(this);
+            metrics.add("lockfile", start);
+            if (locked != null) {
+               log("Kotlin version " + lock.version + " with " + libs + " restored from lockfile");
+               inject(locked);
+               metrics.finish(lock.version, libs);
+               return;
+            }
+         }
+
+         List<URL> classPath = resolveClassPath(mods);
+         String version = versionString();
+         if (lock != null)
+            lock.save(this, version, classPath);
+
+         inject(classPath);
+         metrics.finish(version, bundledElements.keySet());
+      }
+
+      /**
+       * Resolves the class path ahead of time and writes the lockfile.
+       * Deferred libraries are resolved too so launching doesn't download nor extract them.
+       *
+       * @return the class path written to the lockfile.
+       */
+      List<URL> prepare() throws IOException {
+         List<File> mods = listMods();
+         ResolveLock lock = ResolveLock.of(ResolveLock.getFile(modsDirs.get(0)), mods);
+         if (lock == null)
+            throw new IOException("can't compute fingerprint of mods");
+
+         List<URL> classPath = resolveClassPath(mods);
+         String version = versionString();
+         for (Map.Entry<KotlinLibrary, URL> entry : deferredSources.entrySet()) {
+            resolveDeferred(entry.getKey(), entry.getValue(), version);
+         }
+         if (!lock.save(this, version, classPath))
+            throw new IOException("failed to write lockfile");
+         log("Kotlin version " + version + " with " + libs + " is written to " + lock.file);
+         log("launch the game with -D" + lockfilePropName + "=true to use the lockfile");
 
-         String version = this.version[0] + "." + this.version[1] + "." + this.version[2];
+         int removed = CacheCleaner.clean(System.currentTimeMillis());
+         if (removed != 0)
+            log("removed " + removed + " unused files in cache");
+         metrics.finish(version, bundledElements.keySet());
+         return classPath;
+      }
+
+      /**
+       * Resolves kotlin libraries of the mods. This doesn't modify class loaders.
+       *
+       * @return the class path to inject.
+       */
+      List<URL> resolveClassPath(List<File> mods) throws MalformedURLException {
+         collectKotlinMods(mods);
+         if (this.version == null)
+            throw new IllegalStateException("no kotlin found in mods");
+
+         final String version = versionString();
 
          log("Kotlin version " + version + " with " + libs + "found!");
 
+         EnumSet<KotlinLibrary> deferred = EnumSet.noneOf(KotlinLibrary.class);
+         if (getBoolean(lazyLibrariesPropName, false)) {
+            for (KotlinLibrary library : libs) {
+               if (LazyLibraryURLStreamHandler.isDeferrable(library))
+                  deferred.add(library);
+            }
+            if (!deferred.isEmpty())
+               log(deferred + " will be resolved when they're used first.");
+         }
+
          EnumSet<KotlinLibrary> libraries = candidateDownloads();
+         libraries.removeAll(deferred);
 
          log(libraries + " missing in jars! Try cache then download!");
 
-         for (KotlinLibrary library : libraries) {
+         if (getBoolean(parallelVerifyPropName, false)) {
             for (KotlinCacheFinder finder : finders) {
-               File file = finder.find(library, version);
-               if (file != null) {
-                  log("cache found for " + library + " with " + finder);
-                  bundledElements.put(library, file.toURI().toURL());
-                  break;
-               }
+               if (finder instanceof MCKTKotlinCacheFinder)
+                  ((MCKTKotlinCacheFinder) finder).verifyAll(libraries, version);
             }
+         }
 
-            if (!bundledElements.containsKey(library)) {
-               // download
-               File downloaded;
-               try {
-                  downloaded = download(library, version);
-               } catch (IOException e) {
-                  throw new RuntimeException(e.getMessage(), e);
-               }
-               log("downloaded " + library);
-               bundledElements.put(library, downloaded.toURI().toURL());
+         cacheLookup = new CacheLookup(finders);
+         EnumMap<KotlinLibrary, File> found = getBoolean(concurrentLookupPropName, false)
+                 ? cacheLookup.findConcurrently(libraries, version)
+                 : cacheLookup.findSerially(libraries, version);
+         cacheLookup.logLatencies();
+         cacheLookup.addTo(metrics);
+
+         EnumSet<KotlinLibrary> missing = EnumSet.noneOf(KotlinLibrary.class);
+         for (KotlinLibrary library : libraries) {
+            File file = found.get(library);
+            // the file may be removed by the cleaner of other process after found
+            if (file != null && CacheLock.markUsed(file))
+               bundledElements.put(library, file.toURI().toURL());
+            else
+               missing.add(library);
+         }
+
+         for (Map.Entry<KotlinLibrary, File> entry : downloadAll(missing, version).entrySet()) {
+            log("downloaded " + entry.getKey());
+            bundledElements.put(entry.getKey(), entry.getValue().toURI().toURL());
+         }
+
+         boolean merge = getBoolean(mergeLibrariesPropName, false);
+         for (Map.Entry<KotlinLibrary, URL> entry : bundledElements.entrySet()) {
+            if (deferred.contains(entry.getKey())) continue;
+            try {
+               // merging needs local files
+               if (merge && entry.getValue().getProtocol().equals("jar")) {
+                  long start = System.nanoTime();
+                  entry.setValue(extractNestedJar(entry.getKey(), entry.getValue()));
+                  metrics.add("nested-jar", start);
+               } else
+                  entry.setValue(useNestedJar(entry.getKey(), entry.getValue()));
+            } catch (IOException e) {
+               e.printStackTrace();
+            }
+         }
+
+         for (KotlinLibrary library : deferred) {
+            URL bundled = bundledElements.get(library);
+            deferredSources.put(library, bundled);
+            bundledElements.put(library, registerDeferred(library, bundled, version));
+         }
+
+         return merge ? mergeLibraries(deferred) : new ArrayList<URL>(bundledElements.values());
+      }
+
+      String versionString() {
+         return version[0] + "." + version[1] + "." + version[2];
+      }
+
+      URL registerDeferred(final KotlinLibrary library, final URL bundled, final String version) throws MalformedURLException {
+         return LazyLibraryURLStreamHandler.INSTANCE.register(library, new Callable<URL>() {
+            @Override
+            public URL call() throws IOException {
+               return resolveDeferred(library, bundled, version);
+            }
+         });
+      }
+
+      void inject(List<URL> classPath) {
+         long injectStart = System.nanoTime();
+         URLClassLoader parentLoader = LaunchClassPath.inject(classPath);
+         metrics.add("inject", injectStart);
+
+         ClassWarmUp.startIfEnabled(parentLoader);
+         CacheCleaner.start();
+      }
+
+      /**
+       * @return the URL to load the jar in jar directly or the URL of extracted jar. {@code url} if it's not a jar in jar.
+       */
+      URL useNestedJar(KotlinLibrary library, URL url) throws IOException {
+         if (!url.getProtocol().equals("jar")) return url;
+         long start = System.nanoTime();
+         try {
+            return useNestedJar0(library, url);
+         } finally {
+            metrics.add("nested-jar", start);
+         }
+      }
+
+      URL useNestedJar0(KotlinLibrary library, URL url) throws IOException {
+         boolean extractNestedJars = "extract".equals(System.getProperty(nestedJarsPropName));
+         URL nested = extractNestedJars ? null : NestedJarURLStreamHandler.INSTANCE.register(library, url);
+         if (nested != null) {
+            log("using jar in jar from " + library + " directly");
+            nestedSources.put(library, url);
+            return nested;
+         }
+         log("copying jar in jar from " + library);
+         return extractNestedJar(library, url);
+      }
+
+      /**
+       * Resolves the library deferred by lazy mode. This is called at the first use of the library.
+       *
+       * @param bundled the URL of the library in the mods. null if no mods have the library.
+       */
+      URL resolveDeferred(KotlinLibrary library, URL bundled, String version) throws IOException {
+         if (bundled != null) return useNestedJar(library, bundled);
+
+         File file = cacheLookup.findSerially(EnumSet.of(library), version).get(library);
+         if (file == null || !CacheLock.markUsed(file)) {
+            try {
+               file = download(library, version);
+            } finally {
+               repositories().save();
             }
+            log("downloaded " + library);
          }
+         return file.toURI().toURL();
+      }
 
+      /**
+       * Merges local jars in {@link #bundledElements} except for deferred ones.
+       *
+       * @return the class path with the merged jar. same as {@link #bundledElements} if failed to merge.
+       */
+      List<URL> mergeLibraries(EnumSet<KotlinLibrary> deferred) throws MalformedURLException {
+         EnumMap<KotlinLibrary, File> merging = new EnumMap<KotlinLibrary, File>(KotlinLibrary.class);
          for (Map.Entry<KotlinLibrary, URL> entry : bundledElements.entrySet()) {
-            log("copying jar in jar from " + entry.getKey());
-            URL value = entry.getValue();
-            if (value.getProtocol().equals("jar")) {
-               try {
-                  File file = File.createTempFile("mckt", ".jar");
-                  InputStream in = null;
-                  OutputStream out = null;
-                  DigesterOutputStream digester = new DigesterOutputStream(getSha1());
-                  try {
-                     in = new BufferedInputStream(value.openStream());
-                     out = new BufferedOutputStream(new FileOutputStream(file));
-                     copy(in, out, digester);
-                  } finally {
-                     if (in != null) in.close();
-                     if (out != null) out.close();
-                  }
-                  entry.setValue(file.toURI().toURL());
-               } catch (IOException e) {
-                  e.printStackTrace();
+            File file = deferred.contains(entry.getKey()) ? null : toFile(entry.getValue());
+            if (file != null)
+               merging.put(entry.getKey(), file);
+         }
+         if (merging.isEmpty()) return new ArrayList<URL>(bundledElements.values());
+
+         File merged;
+         long start = System.nanoTime();
+         try {
+            merged = MergedRuntimeJar.getOrCreate(merging);
+         } catch (IOException e) {
+            log("failed to merge kotlin libraries: " + e);
+            return new ArrayList<URL>(bundledElements.values());
+         } finally {
+            metrics.add("merge", start);
+         }
+         log("using merged jar " + merged.getName() + " for " + merging.keySet());
+         List<URL> classPath = new ArrayList<URL>();
+         classPath.add(merged.toURI().toURL());
+         for (Map.Entry<KotlinLibrary, URL> entry : bundledElements.entrySet()) {
+            if (!merging.containsKey(entry.getKey()))
+               classPath.add(entry.getValue());
+         }
+         return classPath;
+      }
+
+      /**
+       * @return the file of the {@code file:} URL. null for other URLs.
+       */
+      static File toFile(URL url) {
+         if (!url.getProtocol().equals("file")) return null;
+         try {
+            return new File(url.toURI());
+         } catch (URISyntaxException e) {
+            return null;
+         } catch (IllegalArgumentException e) {
+            return null;
+         }
+      }
+
+      URL extractNestedJar(KotlinLibrary library, URL value) throws IOException {
+         return ExtractedJarCache.extract(value, bundledSha1.get(library)).toURI().toURL();
+      }
+
+      /**
+       * Downloads the libraries. If two or more libraries are missing, they are downloaded in parallel.
+       */
+      EnumMap<KotlinLibrary, File> downloadAll(EnumSet<KotlinLibrary> libraries, String version) {
+         if (libraries.isEmpty()) return new EnumMap<KotlinLibrary, File>(KotlinLibrary.class);
+         try {
+            return downloadAll0(libraries, version);
+         } finally {
+            repositories().save();
+         }
+      }
+
+      EnumMap<KotlinLibrary, File> downloadAll0(EnumSet<KotlinLibrary> libraries, final String version) {
+         EnumMap<KotlinLibrary, File> downloaded = new EnumMap<KotlinLibrary, File>(KotlinLibrary.class);
+         Integer threadsProp = getInteger(downloadThreadsPropName);
+         int threads = Math.min(threadsProp == null ? libraries.size() : threadsProp, libraries.size());
+         try {
+            if (threads <= 1) {
+               for (KotlinLibrary library : libraries) {
+                  downloaded.put(library, download(library, version));
                }
+               return downloaded;
             }
+         } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
          }
 
+         ExecutorService executor = newWorkerPool("MCKT-Resolver-Downloader", threads);
          try {
-            Method addUrl = URLClassLoader.class.getDeclaredMethod("addURL", URL.class);
-            addUrl.setAccessible(true);
-            for (URL value : bundledElements.values()) {
-               addUrl.invoke(parentLoader, value);
+            EnumMap<KotlinLibrary, Future<File>> futures = new EnumMap<KotlinLibrary, Future<File>>(KotlinLibrary.class);
+            for (final KotlinLibrary library : libraries) {
+               futures.put(library, executor.submit(new Callable<File>() {
+                  @Override
+                  public File call() {
+                     try {
+                        return download(library, version);
+                     } catch (IOException e) {
+                        throw new RuntimeException(e.getMessage(), e);
+                     }
+                  }
+               }));
             }
-         } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
-         } catch (InvocationTargetException e) {
-            throw new RuntimeException(e);
-         } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
+            for (Map.Entry<KotlinLibrary, Future<File>> entry : futures.entrySet()) {
+               downloaded.put(entry.getKey(), getFuture(entry.getValue()));
+            }
+         } finally {
+            executor.shutdownNow();
          }
-         classLoader.addClassLoaderExclusion("kotlin.");
+         return downloaded;
       }
 
+      /**
+       * Downloads the library to the cache. The jar is downloaded to a temporary file and renamed
+       * after {@code .sha1} is written so the cache never has partially downloaded jar.
+       * Processes sharing the cache download the same jar only once with {@link CacheLock}.
+       */
       File download(KotlinLibrary library, String version) throws IOException {
+         long start = System.nanoTime();
+         File file = download0(library, version);
+         metrics.add("download", start);
+         metrics.increment("download-bytes", file.length());
+         return file;
+      }
+
+      File download0(KotlinLibrary library, String version) throws IOException {
          File writeTo = MCKTKotlinCacheFinder.getCacheFile(library, version);
-         String url = "https://repo1.maven.org/maven2/" + library.architectPath(version);
-         writeTo.getParentFile().mkdirs();
+         long lockStart = System.nanoTime();
+         CacheLock lock = CacheLock.acquire(writeTo);
+         metrics.add("cache-lock", lockStart);
+         try {
+            // other process may have downloaded it while waiting for the lock
+            if (MCKTKotlinCacheFinder.verify(writeTo)) {
+               log(writeTo.getName() + " is downloaded by other process");
+            } else {
+               download1(library, version, writeTo);
+            }
+            CacheLock.markUsed(writeTo);
+            return writeTo;
+         } finally {
+            lock.close();
+         }
+      }
+
+      File download1(KotlinLibrary library, String version, File writeTo) throws IOException {
+         String path = library.architectPath(version);
+         MavenRepositories repositories = repositories();
+         File tmp = tempFileFor(writeTo);
+         try {
+            IOException failure = null;
+            for (String repository : repositories.ranked()) {
+               try {
+                  String sha1 = downloadFrom(repositories, repository, path, tmp);
+                  writeTextFile(new File(writeTo + ".sha1"), sha1);
+                  replaceFile(tmp, writeTo);
+                  MCKTKotlinCacheFinder.writeStamp(writeTo, sha1);
+                  return writeTo;
+               } catch (IOException e) {
+                  log("failed to download " + library + " from " + repository + ": " + e);
+                  failure = e;
+               }
+            }
+            if (failure == null) throw new IOException("no repositories are configured");
+            throw failure;
+         } finally {
+            tmp.delete();
+         }
+      }
+
+      /**
+       * Downloads the file and verifies it with {@code .sha1} and {@code .sha256} published in the repository
+       * while streaming.
+       *
+       * @return the SHA-1 of downloaded file.
+       * @throws IOException if failed to download or checksum mismatched.
+       */
+      String downloadFrom(MavenRepositories repositories, String repository, String path, File writeTo)
+              throws IOException {
+         String expectedSha1 = repositories.readChecksum(repository, path + ".sha1", 40);
+         String expectedSha256 = repositories.readChecksum(repository, path + ".sha256", 64);
+         if (expectedSha1 == null && expectedSha256 == null) {
+            if (getBoolean(requireChecksumPropName, false))
+               throw new IOException("no checksum published for " + repository + path);
+            log("no checksum published for " + repository + path + ". the file is not verified.");
+         }
+
          InputStream in = null;
          OutputStream out = null;
-         DigesterOutputStream digester = new DigesterOutputStream(getSha1());
+         DigesterOutputStream sha1 = new DigesterOutputStream(getSha1());
+         DigesterOutputStream sha256 = new DigesterOutputStream(getSha256());
          try {
-            in = new BufferedInputStream(new URL(url).openStream());
+            in = new BufferedInputStream(repositories.open(repository, path));
             out = new BufferedOutputStream(new FileOutputStream(writeTo));
-            copy(in, out, digester);
+            if (expectedSha256 == null)
+               copy(in, out, sha1);
+            else
+               copy(in, out, sha1, sha256);
          } finally {
             if (in != null) in.close();
             if (out != null) out.close();
-            out = null;
          }
 
-         try {
-            out = new BufferedOutputStream(new FileOutputStream(writeTo + ".sha1"));
-            out.write(toHexBytes(digester.digest.digest()));
-         } finally {
-            if (out != null) out.close();
+         String actualSha1 = new String(toHexBytes(sha1.digest.digest()), "US-ASCII");
+         if (expectedSha1 != null && !expectedSha1.equalsIgnoreCase(actualSha1)) {
+            repositories.recordFailure(repository);
+            throw new IOException("SHA-1 mismatch for " + repository + path
+                    + ": expected " + expectedSha1 + " but was " + actualSha1);
+         }
+         if (expectedSha256 != null) {
+            String actualSha256 = new String(toHexBytes(sha256.digest.digest()), "US-ASCII");
+            if (!expectedSha256.equalsIgnoreCase(actualSha256)) {
+               repositories.recordFailure(repository);
+               throw new IOException("SHA-256 mismatch for " + repository + path
+                       + ": expected " + expectedSha256 + " but was " + actualSha256);
+            }
          }
+         return actualSha1;
+      }
 
-         return writeTo;
+      synchronized MavenRepositories repositories() {
+         if (repositories == null)
+            repositories = MavenRepositories.load();
+         return repositories;
       }
 
       EnumSet<KotlinLibrary> candidateDownloads() {
@@ -311,98 +788,364 @@ public class MCKTResolver {
          if (KotlinVersion.compareVersion(version, newVersion) < 0) {
             version = newVersion;
             bundledElements.clear();
+            bundledSha1.clear();
          }
       }
 
       void collectKotlinMods() {
-         for (String modsDir : modsDirs) {
-            File dir = new File(Launch.minecraftHome, modsDir);
-            for (File mod : orEmpty(dir.listFiles(jarFilter))) {
-               collectKotlinInMod(mod);
-            }
+         collectKotlinMods(listMods());
+      }
+
+      /**
+       * @return the mods directory and the directory for the minecraft version in it, same as forge.
+       */
+      static List<File> modsDirsOf(File modsDir) {
+         // normalized so the fingerprint of lockfile is same for 'mods' and './mods'
+         modsDir = new File(modsDir.getAbsoluteFile().toURI().normalize());
+         return Arrays.asList(modsDir, new File(modsDir, ForgeVersion.mcVersion));
+      }
+
+      List<File> listMods() {
+         long start = System.nanoTime();
+         List<File> mods = new ArrayList<File>();
+         for (File dir : modsDirs) {
+            mods.addAll(Arrays.asList(orEmpty(dir.listFiles(jarFilter))));
+         }
+         metrics.add("list-mods", start);
+         metrics.put("mods", mods.size());
+         return mods;
+      }
+
+      void collectKotlinMods(List<File> mods) {
+         long start = System.nanoTime();
+         ModScanIndex index = ModScanIndex.open(modsDirs.get(0));
+         for (ModScanResult result : scanMods(mods, index)) {
+            mergeScanResult(result);
          }
+         if (index != null) {
+            log(index.hits + " of " + mods.size() + " mods are read from scan index");
+            metrics.put("scan-index-hits", index.hits);
+            index.save();
+         }
+         metrics.add("scan", start);
       }
 
       void collectKotlinInMod(File mod) {
+         mergeScanResult(scanMod(mod));
+      }
+
+      /**
+       * Scans all mods. If two or more scanner threads are allowed, jars are scanned on the worker pool.
+       * The results are in same order as {@code mods} so merging them is same as serial scanning.
+       */
+      List<ModScanResult> scanMods(List<File> mods) {
+         return scanMods(mods, null);
+      }
+
+      List<ModScanResult> scanMods(List<File> mods, final ModScanIndex index) {
+         int threads = scanThreads(mods.size());
+         List<ModScanResult> results = new ArrayList<ModScanResult>(mods.size());
+         if (threads <= 1) {
+            for (File mod : mods) {
+               results.add(scanMod(mod, index));
+            }
+            return results;
+         }
+
+         ExecutorService executor = newWorkerPool("MCKT-Resolver-Scanner", threads);
+         try {
+            List<Future<ModScanResult>> futures = new ArrayList<Future<ModScanResult>>(mods.size());
+            for (final File mod : mods) {
+               futures.add(executor.submit(new Callable<ModScanResult>() {
+                  @Override
+                  public ModScanResult call() {
+                     return scanMod(mod, index);
+                  }
+               }));
+            }
+            for (Future<ModScanResult> future : futures) {
+               results.add(getFuture(future));
+            }
+         } finally {
+            executor.shutdownNow();
+         }
+         return results;
+      }
+
+      static int scanThreads(int mods) {
+         Integer threads = getInteger(scanThreadsPropName);
+         if (threads == null) threads = Runtime.getRuntime().availableProcessors();
+         return Math.min(threads, mods);
+      }
+
+      /**
+       * Collects kotlin information of the mod from index if the mod is not changed.
+       * The index is updated if the mod is scanned.
+       */
+      ModScanResult scanMod(File mod, ModScanIndex index) {
+         if (index == null) return scanMod(mod);
+         FileStamp stamp = FileStamp.of(mod);
+         if (stamp == null) return scanMod(mod);
+         ModScanResult result = index.get(stamp, mod);
+         if (result != null) return result;
+         result = scanMod(mod);
+         if (result != null) index.put(stamp, result);
+         return result;
+      }
+
+      /**
+       * Collects kotlin information of the mod. This doesn't modify the resolver so
+       * can be called from any thread.
+       *
+       * @return the result of scan. null if the mod is not readable.
+       */
+      ModScanResult scanMod(File mod) {
+         long start = System.nanoTime();
+         JarProbe probe = null;
          try {
-            JarFile jarFile = new JarFile(mod);
-            shadowedKotlinInMod(mod, jarFile);
-            Manifest manifest = jarFile.getManifest();
-            if (manifest == null) return;
+            probe = JarProbe.open(mod);
+            EnumSet<KotlinLibrary> shadowed = EnumSet.noneOf(KotlinLibrary.class);
+            String shadowedVersion = shadowedKotlinInMod(probe, shadowed);
+
+            Manifest manifest = probe.getManifest();
+            NestedJarScanner nested = new NestedJarScanner(mod.getName());
+            nested.scan(probe.source, probe.directory, manifest);
+            shadowed.addAll(nested.shadowed);
+            shadowedVersion = NestedJarScanner.newer(shadowedVersion, nested.version);
+
+            if (manifest == null) return new ModScanResult(mod, shadowed, shadowedVersion, null, null, null, null);
             Attributes root = manifest.getMainAttributes();
             String mfVersion = root.getValue("MCKT-MF-Version");
-            if (mfVersion == null) return;
-
-            Integer mfVersionIn = parseInteger(mfVersion);
-            String ktVersion = root.getValue("MCKT-KT-Version");
-            String parts = root.getValue("MCKT-KT-Parts");
             String jars = root.getValue("MCKT-KT-Jars");
+            String jarsMismatch = null;
+            Integer mfVersionIn = parseInteger(mfVersion);
+            if (mfVersionIn != null && mfVersionIn >= 2 && jars != null) {
+               jarsMismatch = checkJars(probe.directory, jars,
+                       root.getValue("MCKT-KT-Jars-Size"), root.getValue("MCKT-KT-Jars-CRC"));
+            }
+            return new ModScanResult(mod, shadowed, shadowedVersion,
+                    mfVersion,
+                    root.getValue("MCKT-KT-Version"),
+                    root.getValue("MCKT-KT-Parts"),
+                    jars,
+                    root.getValue("MCKT-KT-Jars-SHA1"),
+                    root.getValue("MCKT-KT-Jars-Version"),
+                    jarsMismatch);
+         } catch (IOException ignored) {
+            return null;
+         } finally {
+            closeQuietly(probe);
+            metrics.add("scan-mod", start);
+         }
+      }
+
+      /**
+       * Checks the jars in the mod are the jars described in MCKT manifest version 2
+       * with sizes and CRCs in the central directory, without reading the jars.
+       *
+       * @return the reason of mismatch. null if the jars match.
+       */
+      static String checkJars(ZipDirectory directory, String jars, String sizes, String crcs) {
+         if (sizes == null) return "MCKT-KT-Jars-Size is not specified";
+         String[] jarList = jars.split(",");
+         String[] sizeList = sizes.split(",");
+         String[] crcList = crcs == null ? null : crcs.split(",");
+         if (sizeList.length != jarList.length || crcList != null && crcList.length != jarList.length)
+            return "MCKT-KT-Jars-Size or MCKT-KT-Jars-CRC conflict with MCKT-KT-Jars";
+         for (int i = 0; i < jarList.length; i++) {
+            String jar = jarList[i].trim();
+            ZipDirectoryEntry entry = directory.getEntry(jar);
+            if (entry == null) return jar + " not found";
+            try {
+               if (entry.size != Long.parseLong(sizeList[i].trim()))
+                  return "size of " + jar + " doesn't match MCKT-KT-Jars-Size";
+               if (crcList != null && entry.crc != Long.parseLong(crcList[i].trim(), 16))
+                  return "CRC of " + jar + " doesn't match MCKT-KT-Jars-CRC";
+            } catch (NumberFormatException e) {
+               return "invalid number: " + e.getMessage();
+            }
+         }
+         return null;
+      }
 
-            if (mfVersionIn == null)
-               throw new IllegalStateException("Unsupported MCKT manifest version: " + mfVersion);
-            if (mfVersionIn > MANIFEST_VERSION)
-               throw new IllegalStateException("Unsupported MCKT manifest version: " + mfVersion);
-            if (ktVersion == null)
-               throw new IllegalStateException("invalid MCKT manifest: MCKT-KT-Version is not specified");
+      /**
+       * Checks {@code MCKT-KT-Jars-SHA1} and {@code MCKT-KT-Jars-Version} are usable.
+       *
+       * @return the description of the problem. null if usable.
+       */
+      static String checkJarVersions(String[] partList, String jarsSha1, String jarsVersion) {
+         if (jarsSha1 == null || jarsVersion == null)
+            return "MCKT-KT-Jars-SHA1 or MCKT-KT-Jars-Version is not specified";
+         String[] sha1List = jarsSha1.split(",");
+         String[] jarVersionList = jarsVersion.split(",");
+         if (sha1List.length != partList.length || jarVersionList.length != partList.length)
+            return "MCKT-KT-Jars-SHA1 or MCKT-KT-Jars-Version conflict with MCKT-KT-Jars";
+         for (int i = 0; i < partList.length; i++) {
+            KotlinLibrary lib = KotlinLibrary.byName.get(partList[i].trim());
+            if (lib != null && lib.hasKotlinVersion() && KotlinVersion.parse(jarVersionList[i].trim()) == null)
+               return "MCKT-KT-Jars-Version is not parsable: " + jarVersionList[i];
+         }
+         return null;
+      }
 
-            int[] version = KotlinVersion.parse(ktVersion);
-            addVersion(version);
+      void mergeScanResult(ModScanResult result) {
+         if (result == null) return;
+         File mod = result.mod;
 
-            if (version == null)
-               throw new IllegalStateException("invalid MCKT manifest: MCKT-KT-Version is not parsable: " + ktVersion);
+         for (KotlinLibrary value : result.shadowedLibs) {
+            log("Shadowed " + value.libName + " found in " + mod.getName());
+            this.libs.add(value);
+         }
 
-            log("MCKT Manifest Kotlin version " + ktVersion + " found in " + mod.getName());
+         if (result.shadowedVersion != null) {
+            log("Shadowed Kotlin version " + result.shadowedVersion + " found in " + mod.getName());
+            addVersion(KotlinVersion.parseVersionNullable(result.shadowedVersion));
+         }
 
-            if (parts == null) {
-               log("MCKT Manifest without parts found in " + mod.getName());
-               this.libs.addAll(defaultLibs);
-            } else {
-               URI jarUri = mod.toURI();
-               String[] partList = parts.split(",");
-               String[] jarList = jars == null ? new String[partList.length] : jars.split(",");
+         String mfVersion = result.mfVersion;
+         if (mfVersion == null) return;
+
+         Integer mfVersionIn = parseInteger(mfVersion);
+         String ktVersion = result.ktVersion;
+         String parts = result.parts;
+         String jars = result.jars;
+
+         if (mfVersionIn == null)
+            throw new IllegalStateException("Unsupported MCKT manifest version: " + mfVersion);
+         if (mfVersionIn > MANIFEST_VERSION)
+            throw new IllegalStateException("Unsupported MCKT manifest version: " + mfVersion);
+         if (ktVersion == null)
+            throw new IllegalStateException("invalid MCKT manifest: MCKT-KT-Version is not specified");
+
+         int[] version = KotlinVersion.parse(ktVersion);
+         addVersion(version);
+
+         if (version == null)
+            throw new IllegalStateException("invalid MCKT manifest: MCKT-KT-Version is not parsable: " + ktVersion);
 
-               if (jarList.length != partList.length)
-                  throw new IllegalStateException("invalid MCKT manifest: MCKT-KT-Jars and MCKT-KT-Parts conflict.");
+         log("MCKT Manifest Kotlin version " + ktVersion + " found in " + mod.getName());
 
+         if (parts == null) {
+            log("MCKT Manifest without parts found in " + mod.getName());
+            this.libs.addAll(defaultLibs);
+         } else {
+            URI jarUri = mod.toURI();
+            String[] partList = parts.split(",");
+            String[] jarList = jars == null ? new String[partList.length] : jars.split(",");
+
+            if (jarList.length != partList.length)
+               throw new IllegalStateException("invalid MCKT manifest: MCKT-KT-Jars and MCKT-KT-Parts conflict.");
+
+            String[] sha1List = null;
+            String[] jarVersionList = null;
+            if (mfVersionIn >= 2 && jars != null) {
+               if (result.jarsMismatch != null) {
+                  // the jars are not the declared ones so they can't be trusted. the libraries will be downloaded.
+                  log("MCKT Manifest jars in " + mod.getName() + " are not used: " + result.jarsMismatch);
+                  jarList = new String[partList.length];
+               } else {
+                  String invalid = checkJarVersions(partList, result.jarsSha1, result.jarsVersion);
+                  if (invalid == null) {
+                     sha1List = result.jarsSha1.split(",");
+                     jarVersionList = result.jarsVersion.split(",");
+                  } else {
+                     // the jars are hashed and the versions are not checked like version 1
+                     log("MCKT Manifest version 2 attributes in " + mod.getName() + " are ignored: " + invalid);
+                  }
+               }
+            }
+
+            // adding versions in the loop can clear jars of this mod added before
+            if (jarVersionList != null) {
                for (int i = 0; i < partList.length; i++) {
-                  String part = partList[i].trim();
-                  String jar = jarList[i];
+                  KotlinLibrary lib = KotlinLibrary.byName.get(partList[i].trim());
+                  if (lib != null && lib.hasKotlinVersion())
+                     addVersion(KotlinVersion.parse(jarVersionList[i].trim()));
+               }
+            }
+
+            for (int i = 0; i < partList.length; i++) {
+               String part = partList[i].trim();
+               String jar = jarList[i];
 
-                  KotlinLibrary lib = KotlinLibrary.byName.get(part);
-                  if (lib == null) throw new IllegalStateException("unknown library key: " + part);
+               KotlinLibrary lib = KotlinLibrary.byName.get(part);
+               if (lib == null) throw new IllegalStateException("unknown library key: " + part);
 
-                  log("MCKT Manifest " + lib.libName + " found in " + mod.getName());
-                  this.libs.add(lib);
-                  if (jar != null) bundledElements.put(lib, URI.create("jar:" + jarUri + "!/" + jar).toURL());
+               log("MCKT Manifest " + lib.libName + " found in " + mod.getName());
+               this.libs.add(lib);
+               if (jar == null) continue;
+               if (jarVersionList != null) {
+                  String jarVersion = jarVersionList[i].trim();
+                  if (!lib.hasKotlinVersion()) {
+                     if (!jarVersion.equals(lib.getVersionOf(ktVersion))) {
+                        log("MCKT Manifest " + lib.libName + " " + jarVersion + " in " + mod.getName() + " is not expected version");
+                        continue;
+                     }
+                  } else {
+                     int[] jarVersionIn = KotlinVersion.parse(jarVersion);
+                     if (KotlinVersion.compareVersion(jarVersionIn, this.version) < 0) {
+                        log("MCKT Manifest " + lib.libName + " " + jarVersion + " in " + mod.getName() + " is older than required");
+                        continue;
+                     }
+                  }
+               }
+               try {
+                  bundledElements.put(lib, URI.create("jar:" + jarUri + "!/" + jar).toURL());
+               } catch (MalformedURLException e) {
+                  throw new IllegalStateException(e.getMessage(), e);
                }
+               if (sha1List != null)
+                  bundledSha1.put(lib, sha1List[i].trim().toLowerCase());
+               else
+                  bundledSha1.remove(lib);
             }
-         } catch (IOException ignored) {
          }
       }
 
-      void shadowedKotlinInMod(File mod, JarFile jar) {
-         boolean hasKotlinStdlib = false;
+      /**
+       * Finds shadowed kotlin libraries in the jar and adds them to {@code shadowed}.
+       *
+       * @return the version of shadowed kotlin-stdlib. null if kotlin-stdlib is not shadowed.
+       */
+      String shadowedKotlinInMod(JarEntrySource jar, EnumSet<KotlinLibrary> shadowed) {
          for (KotlinLibrary value : KotlinLibrary.VALUES) {
-            if (jar.getEntry(value.detectClassFileName) == null) continue;
+            if (!jar.hasEntry(value.detectClassFileName)) continue;
+            shadowed.add(value);
+         }
 
-            if (value == KotlinLibrary.KotlinStdlib)
-               hasKotlinStdlib = true;
-            log("Shadowed " + value.libName + " found in " + mod.getName());
-            this.libs.add(value);
+         if (shadowed.contains(KotlinLibrary.KotlinStdlib)) {
+            return detectKotlinVersion(jar);
          }
+         return null;
+      }
+
+      String detectKotlinVersion(JarFile jar) {
+         return detectKotlinVersion(new JarFileEntrySource(jar));
+      }
 
-         String kotlinVersion = null;
-         if (hasKotlinStdlib) {
-            kotlinVersion = detectKotlinVersion(jar);
+      String detectKotlinVersion(JarEntrySource source) {
+         long start = System.nanoTime();
+         try {
+            return detectKotlinVersion0(source);
+         } finally {
+            metrics.add("detect-version", start);
          }
+      }
 
-         if (kotlinVersion != null) {
-            log("Shadowed Kotlin version " + kotlinVersion + " found in " + mod.getName());
-            addVersion(KotlinVersion.parseVersionNullable(kotlinVersion));
+      String detectKotlinVersion0(JarEntrySource source) {
+         String version = null;
+         try {
+            version = KotlinVersionClassReader.readCurrentVersion(source);
+            if (version == null)
+               version = KotlinVersionClassReader.readManifestVersion(source.getManifest());
+         } catch (IOException ignored) {
          }
+         if (version != null) return version;
+         log("Kotlin version can't be read from class file. trying to load kotlin.KotlinVersion");
+         return detectKotlinVersionByClassLoading(source);
       }
 
-      String detectKotlinVersion(JarFile jar) {
+      String detectKotlinVersionByClassLoading(JarEntrySource jar) {
          String version = "1.1.0";
          SingleJarClassLoader loader = new SingleJarClassLoader();
          loader.jar = jar;
@@ -419,10 +1162,6 @@ public class MCKTResolver {
          return version;
       }
 
-      File[] orEmpty(File[] files) {
-         return files == null ? new File[0] : files;
-      }
-
       Integer parseInteger(String str) {
          try {
             return Integer.parseInt(str);
@@ -431,9 +1170,6 @@ public class MCKTResolver {
          }
       }
 
-      static final LaunchClassLoader classLoader;
-      static final URLClassLoader parentLoader;
-      static final String[] modsDirs = new String[]{"mods", "mods" + File.separatorChar + ForgeVersion.mcVersion};
       static final String kotlinVersionClassName = q("<kotlin.KotlinVersion>");
       static final EnumSet<KotlinLibrary> defaultLibs;
 
@@ -445,13 +1181,6 @@ public class MCKTResolver {
       };
 
       static {
-         if (Launch.classLoader == null)
-            throw new IllegalStateException("LaunchClassLoader not loaded.");
-         ClassLoader lclClassLoader = Launch.classLoader.getClass().getClassLoader();
-         if (!(lclClassLoader instanceof URLClassLoader))
-            throw new IllegalStateException("LaunchClassLoader is not loaded by URLClassLoader");
-         classLoader = Launch.classLoader;
-         parentLoader = (URLClassLoader) lclClassLoader;
          if (System.getProperty("java.specification.version").equals("1.8")) {
             defaultLibs = EnumSet.of(KotlinLibrary.KotlinStdlib, KotlinLibrary.KotlinStdlibJdk7, KotlinLibrary.KotlinStdlibJdk8);
          } else if (System.getProperty("java.specification.version").equals("1.7")) {
@@ -465,93 +1194,3221 @@ public class MCKTResolver {
       }
    }
 
-   static class SingleJarClassLoader extends ClassLoader {
-      JarFile jar;
+   /**
+    * The parts of resolving which need launchwrapper. {@link Resolver} doesn't use launchwrapper directly
+    * so it can resolve without the game by {@link #main(String[])}.
+    */
+   static class LaunchClassPath {
+      static File getMinecraftHome() {
+         return Launch.minecraftHome;
+      }
 
-      @Override
-      protected Class<?> findClass(String name) throws ClassNotFoundException {
-         JarFile jar = this.jar;
-         if (jar == null) throw new ClassNotFoundException(name);
-         JarEntry entry = jar.getJarEntry(name.replace('.', '/') + ".class");
-         if (entry == null) return super.findClass(name);
-         ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      /**
+       * Adds the class path to the parent class loader of LaunchClassLoader.
+       *
+       * @return the parent class loader of LaunchClassLoader.
+       */
+      static URLClassLoader inject(List<URL> classPath) {
+         LaunchClassLoader classLoader = Launch.classLoader;
+         if (classLoader == null)
+            throw new IllegalStateException("LaunchClassLoader not loaded.");
+         ClassLoader lclClassLoader = classLoader.getClass().getClassLoader();
+         if (!(lclClassLoader instanceof URLClassLoader))
+            throw new IllegalStateException("LaunchClassLoader is not loaded by URLClassLoader");
+         URLClassLoader parentLoader = (URLClassLoader) lclClassLoader;
+         try {
+            Method addUrl = URLClassLoader.class.getDeclaredMethod("addURL", URL.class);
+            addUrl.setAccessible(true);
+            for (URL value : classPath) {
+               addUrl.invoke(parentLoader, value);
+            }
+         } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+         } catch (InvocationTargetException e) {
+            throw new RuntimeException(e);
+         } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+         }
+         classLoader.addClassLoaderExclusion("kotlin.");
+         return parentLoader;
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The kotlin information found in one mod. This is immutable so can be passed between scanner threads.
+    * Manifest attributes are kept as is and validated when merged to {@link Resolver}.
+    */
+   static final class ModScanResult {
+      final File mod;
+      final Set<KotlinLibrary> shadowedLibs;
+      final String shadowedVersion;
+      final String mfVersion;
+      final String ktVersion;
+      final String parts;
+      final String jars;
+      // MCKT manifest version 2
+      final String jarsSha1;
+      final String jarsVersion;
+      // the reason the jars don't match MCKT-KT-Jars-Size or MCKT-KT-Jars-CRC. null if matched.
+      final String jarsMismatch;
+
+      ModScanResult(File mod, EnumSet<KotlinLibrary> shadowedLibs, String shadowedVersion,
+                    String mfVersion, String ktVersion, String parts, String jars) {
+         this(mod, shadowedLibs, shadowedVersion, mfVersion, ktVersion, parts, jars, null, null, null);
+      }
+
+      ModScanResult(File mod, EnumSet<KotlinLibrary> shadowedLibs, String shadowedVersion,
+                    String mfVersion, String ktVersion, String parts, String jars,
+                    String jarsSha1, String jarsVersion, String jarsMismatch) {
+         this.mod = mod;
+         this.shadowedLibs = Collections.unmodifiableSet(EnumSet.copyOf(shadowedLibs));
+         this.shadowedVersion = shadowedVersion;
+         this.mfVersion = mfVersion;
+         this.ktVersion = ktVersion;
+         this.parts = parts;
+         this.jars = jars;
+         this.jarsSha1 = jarsSha1;
+         this.jarsVersion = jarsVersion;
+         this.jarsMismatch = jarsMismatch;
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The on-disk index of {@link ModScanResult} keyed by canonical path, length and last modified time of the mod.
+    * Each record has its own CRC so broken records are ignored on their own.
+    * Each mods directory has its own index, {@code mod-scan-index-<hash of mods directory>.bin},
+    * so records of mods which are not scanned in this launch are not saved without removing records of
+    * other game instances.
+    */
+   static class ModScanIndex {
+      static final int MAGIC = 0x4d434b54;
+      static final int FORMAT_VERSION = 3;
+      static final int MAX_RECORD_SIZE = 1 << 20;
+
+      final File file;
+      final Map<String, Record> loaded = new HashMap<String, Record>();
+      final Map<String, Record> used = new HashMap<String, Record>();
+      int hits;
+
+      ModScanIndex(File file) {
+         this.file = file;
+      }
+
+      static ModScanIndex open(File modsDir) {
+         if (!getBoolean(scanIndexPropName, true)) return null;
+         ModScanIndex index = new ModScanIndex(new File(getCacheBase(), filePrefix + directoryKey(modsDir) + fileSuffix));
+         index.load();
+         return index;
+      }
+
+      synchronized ModScanResult get(FileStamp stamp, File mod) {
+         Record record = loaded.get(stamp.path);
+         if (record == null) return null;
+         if (!record.stamp.equals(stamp)) return null;
+         used.put(stamp.path, record);
+         hits++;
+         return new ModScanResult(mod, record.shadowedLibs, record.shadowedVersion,
+                 record.mfVersion, record.ktVersion, record.parts, record.jars,
+                 record.jarsSha1, record.jarsVersion, record.jarsMismatch);
+      }
+
+      synchronized void put(FileStamp stamp, ModScanResult result) {
+         EnumSet<KotlinLibrary> shadowedLibs = EnumSet.noneOf(KotlinLibrary.class);
+         shadowedLibs.addAll(result.shadowedLibs);
+         used.put(stamp.path, new Record(stamp, shadowedLibs, result.shadowedVersion,
+                 result.mfVersion, result.ktVersion, result.parts, result.jars,
+                 result.jarsSha1, result.jarsVersion, result.jarsMismatch));
+      }
+
+      void load() {
+         if (!file.isFile()) return;
+         DataInputStream in = null;
+         try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) return;
+            if (in.readInt() != FORMAT_VERSION) return;
+            while (true) {
+               int size;
+               try {
+                  size = in.readInt();
+               } catch (EOFException e) {
+                  break;
+               }
+               if (size < 0 || size > MAX_RECORD_SIZE) break;
+               byte[] bytes = new byte[size];
+               in.readFully(bytes);
+               long crc = in.readLong();
+               CRC32 crc32 = new CRC32();
+               crc32.update(bytes);
+               if (crc32.getValue() != crc) continue;
+               Record record = Record.read(bytes);
+               if (record != null) loaded.put(record.stamp.path, record);
+            }
+         } catch (IOException e) {
+            // the index is broken after here. records read before are still valid.
+            log("scan index is broken: " + e);
+         } finally {
+            closeQuietly(in);
+         }
+      }
+
+      synchronized void save() {
+         file.getParentFile().mkdirs();
+         File tmp = null;
+         DataOutputStream out = null;
+         try {
+            tmp = tempFileFor(file);
+            try {
+               out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+               out.writeInt(MAGIC);
+               out.writeInt(FORMAT_VERSION);
+               for (Record record : used.values()) {
+                  byte[] bytes;
+                  try {
+                     bytes = record.toBytes();
+                  } catch (UTFDataFormatException e) {
+                     continue;
+                  }
+                  CRC32 crc32 = new CRC32();
+                  crc32.update(bytes);
+                  out.writeInt(bytes.length);
+                  out.write(bytes);
+                  out.writeLong(crc32.getValue());
+               }
+            } finally {
+               if (out != null) out.close();
+            }
+            replaceFile(tmp, file);
+         } catch (IOException e) {
+            log("failed to save scan index: " + e);
+            if (tmp != null) tmp.delete();
+         }
+      }
+
+      static class Record {
+         final FileStamp stamp;
+         final EnumSet<KotlinLibrary> shadowedLibs;
+         final String shadowedVersion;
+         final String mfVersion;
+         final String ktVersion;
+         final String parts;
+         final String jars;
+         final String jarsSha1;
+         final String jarsVersion;
+         final String jarsMismatch;
+
+         Record(FileStamp stamp, EnumSet<KotlinLibrary> shadowedLibs, String shadowedVersion,
+                String mfVersion, String ktVersion, String parts, String jars,
+                String jarsSha1, String jarsVersion, String jarsMismatch) {
+            this.stamp = stamp;
+            this.shadowedLibs = shadowedLibs;
+            this.shadowedVersion = shadowedVersion;
+            this.mfVersion = mfVersion;
+            this.ktVersion = ktVersion;
+            this.parts = parts;
+            this.jars = jars;
+            this.jarsSha1 = jarsSha1;
+            this.jarsVersion = jarsVersion;
+            this.jarsMismatch = jarsMismatch;
+         }
+
+         static Record read(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            FileStamp stamp = new FileStamp(in.readUTF(), in.readLong(), in.readLong());
+            EnumSet<KotlinLibrary> shadowedLibs = EnumSet.noneOf(KotlinLibrary.class);
+            int libCount = in.readInt();
+            for (int i = 0; i < libCount; i++) {
+               KotlinLibrary library = KotlinLibrary.byName.get(in.readUTF());
+               if (library == null) return null;
+               shadowedLibs.add(library);
+            }
+            return new Record(stamp, shadowedLibs,
+                    readNullableUTF(in), readNullableUTF(in), readNullableUTF(in), readNullableUTF(in), readNullableUTF(in),
+                    readNullableUTF(in), readNullableUTF(in), readNullableUTF(in));
+         }
+
+         byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(stamp.path);
+            out.writeLong(stamp.length);
+            out.writeLong(stamp.lastModified);
+            out.writeInt(shadowedLibs.size());
+            for (KotlinLibrary library : shadowedLibs) {
+               out.writeUTF(library.libName);
+            }
+            writeNullableUTF(out, shadowedVersion);
+            writeNullableUTF(out, mfVersion);
+            writeNullableUTF(out, ktVersion);
+            writeNullableUTF(out, parts);
+            writeNullableUTF(out, jars);
+            writeNullableUTF(out, jarsSha1);
+            writeNullableUTF(out, jarsVersion);
+            writeNullableUTF(out, jarsMismatch);
+            out.close();
+            return bytes.toByteArray();
+         }
+
+         static String readNullableUTF(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+         }
+
+         static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) out.writeUTF(value);
+         }
+
+         public static void staticInit() {
+         }
+      }
+
+      static final String filePrefix = q("<mod-scan-index->");
+      static final String fileSuffix = q("<.bin>");
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The canonical path, length, and last modified time of a file. used to detect changes of files without reading.
+    */
+   static final class FileStamp {
+      final String path;
+      final long length;
+      final long lastModified;
+
+      FileStamp(String path, long length, long lastModified) {
+         this.path = path;
+         this.length = length;
+         this.lastModified = lastModified;
+      }
+
+      /**
+       * @return the stamp of the file. null if the file is not a regular file or canonical path can't be get.
+       */
+      static FileStamp of(File file) {
+         try {
+            if (!file.isFile()) return null;
+            return new FileStamp(file.getCanonicalPath(), file.length(), file.lastModified());
+         } catch (IOException e) {
+            return null;
+         }
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (this == o) return true;
+         if (!(o instanceof FileStamp)) return false;
+         FileStamp that = (FileStamp) o;
+         return length == that.length && lastModified == that.lastModified && path.equals(that.path);
+      }
+
+      @Override
+      public int hashCode() {
+         int result = path.hashCode();
+         result = 31 * result + (int) (length ^ (length >>> 32));
+         result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+         return result;
+      }
+
+      @Override
+      public String toString() {
+         return path + " (" + length + " bytes, modified at " + lastModified + ")";
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The source of entries of a jar.
+    */
+   interface JarEntrySource {
+      boolean hasEntry(String name);
+
+      /**
+       * @return the contents of the entry. null if not found.
+       */
+      byte[] readEntry(String name) throws IOException;
+
+      Manifest getManifest() throws IOException;
+   }
+
+   static class JarFileEntrySource implements JarEntrySource {
+      final JarFile jar;
+
+      JarFileEntrySource(JarFile jar) {
+         this.jar = jar;
+      }
+
+      @Override
+      public boolean hasEntry(String name) {
+         return jar.getEntry(name) != null;
+      }
+
+      @Override
+      public byte[] readEntry(String name) throws IOException {
+         JarEntry entry = jar.getJarEntry(name);
+         if (entry == null) return null;
+         ByteArrayOutputStream stream = new ByteArrayOutputStream();
+         InputStream inputStream = null;
+         try {
+            inputStream = jar.getInputStream(entry);
+            copy(inputStream, stream);
+         } finally {
+            if (inputStream != null)
+               inputStream.close();
+         }
+         return stream.toByteArray();
+      }
+
+      @Override
+      public Manifest getManifest() throws IOException {
+         return jar.getManifest();
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The jar read from a stream once. Only names of the classes used to detect kotlin libraries,
+    * the manifest, and {@code kotlin/KotlinVersion*.class} are kept so other entries are not found.
+    */
+   static class StreamedJarEntrySource implements JarEntrySource {
+      static final int MAX_ENTRY_SIZE = 1 << 20;
+      static final String kotlinVersionPrefix = q("<kotlin/KotlinVersion>");
+
+      final Set<String> names = new HashSet<String>();
+      final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+
+      /**
+       * Keeps the current entry of {@code zip} if needed.
+       *
+       * @return true if the entry is kept.
+       */
+      boolean accept(String name, ZipInputStream zip) throws IOException {
+         if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME)
+                 || name.startsWith(kotlinVersionPrefix) && name.endsWith(".class")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 << 10];
+            int read;
+            while ((read = zip.read(buffer)) != -1) {
+               if (out.size() + read > MAX_ENTRY_SIZE) throw new ZipException("too large entry: " + name);
+               out.write(buffer, 0, read);
+            }
+            contents.put(name.equalsIgnoreCase(JarFile.MANIFEST_NAME) ? JarFile.MANIFEST_NAME : name, out.toByteArray());
+            return true;
+         }
+         for (KotlinLibrary value : KotlinLibrary.VALUES) {
+            if (name.equals(value.detectClassFileName)) {
+               names.add(name);
+               return true;
+            }
+         }
+         return false;
+      }
+
+      @Override
+      public boolean hasEntry(String name) {
+         return names.contains(name) || contents.containsKey(name);
+      }
+
+      @Override
+      public byte[] readEntry(String name) {
+         return contents.get(name);
+      }
+
+      @Override
+      public Manifest getManifest() throws IOException {
+         byte[] bytes = contents.get(JarFile.MANIFEST_NAME);
+         if (bytes == null) return null;
+         return new Manifest(new ByteArrayInputStream(bytes));
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The jar reader which reads only central directory and requested entries.
+    * Unlike {@link JarFile}, this doesn't keep anything after {@link #close()} so
+    * file descriptors are not kept while game is running.
+    */
+   static class JarProbe implements JarEntrySource, Closeable {
+      final ZipSource source;
+      final ZipDirectory directory;
+
+      JarProbe(ZipSource source, ZipDirectory directory) {
+         this.source = source;
+         this.directory = directory;
+      }
+
+      static JarProbe open(File file) throws IOException {
+         FileZipSource source = new FileZipSource(file);
+         try {
+            return new JarProbe(source, ZipDirectory.read(source));
+         } catch (IOException e) {
+            source.close();
+            throw e;
+         } catch (RuntimeException e) {
+            source.close();
+            throw e;
+         }
+      }
+
+      @Override
+      public boolean hasEntry(String name) {
+         return directory.getEntry(name) != null;
+      }
+
+      @Override
+      public byte[] readEntry(String name) throws IOException {
+         ZipDirectoryEntry entry = directory.getEntry(name);
+         if (entry == null) return null;
+         return directory.readEntry(source, entry);
+      }
+
+      @Override
+      public Manifest getManifest() throws IOException {
+         ZipDirectoryEntry entry = directory.getEntry(JarFile.MANIFEST_NAME);
+         if (entry == null) entry = directory.getEntryIgnoreCase(JarFile.MANIFEST_NAME);
+         if (entry == null) return null;
+         return new Manifest(new ByteArrayInputStream(directory.readEntry(source, entry)));
+      }
+
+      @Override
+      public void close() throws IOException {
+         if (source instanceof Closeable)
+            ((Closeable) source).close();
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The random access view of zip file.
+    */
+   interface ZipSource {
+      long size() throws IOException;
+
+      void readFully(long position, byte[] bytes, int offset, int length) throws IOException;
+   }
+
+   static class FileZipSource implements ZipSource, Closeable {
+      final RandomAccessFile file;
+      final FileChannel channel;
+
+      FileZipSource(File file) throws IOException {
+         this.file = new RandomAccessFile(file, "r");
+         this.channel = this.file.getChannel();
+      }
+
+      @Override
+      public long size() throws IOException {
+         return channel.size();
+      }
+
+      @Override
+      public void readFully(long position, byte[] bytes, int offset, int length) throws IOException {
+         ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+         while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position() - offset);
+            if (read < 0) throw new EOFException();
+         }
+      }
+
+      @Override
+      public void close() throws IOException {
+         file.close();
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   static class ZipDirectoryEntry {
+      final String name;
+      final int method;
+      final long crc;
+      final long compressedSize;
+      final long size;
+      final long localHeaderOffset;
+
+      ZipDirectoryEntry(String name, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+         this.name = name;
+         this.method = method;
+         this.crc = crc;
+         this.compressedSize = compressedSize;
+         this.size = size;
+         this.localHeaderOffset = localHeaderOffset;
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The parsed central directory of zip file.
+    */
+   static class ZipDirectory {
+      static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+      static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+      static final int END_SIGNATURE = 0x06054b50;
+      static final int ZIP64_END_SIGNATURE = 0x06064b50;
+      static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+      static final int END_SIZE = 22;
+      static final int ZIP64_LOCATOR_SIZE = 20;
+      static final int MAX_COMMENT_SIZE = 0xFFFF;
+      static final int STORED = 0;
+      static final int DEFLATED = 8;
+
+      final Map<String, ZipDirectoryEntry> entries;
+
+      ZipDirectory(Map<String, ZipDirectoryEntry> entries) {
+         this.entries = entries;
+      }
+
+      ZipDirectoryEntry getEntry(String name) {
+         return entries.get(name);
+      }
+
+      ZipDirectoryEntry getEntryIgnoreCase(String name) {
+         for (ZipDirectoryEntry entry : entries.values()) {
+            if (entry.name.equalsIgnoreCase(name)) return entry;
+         }
+         return null;
+      }
+
+      /**
+       * Checks the end of central directory record candidate at {@code tail[i]}.
+       * If the comment length doesn't reach the end of file, like bytes padded after the zip,
+       * the candidate is accepted only if the central directory ends just before it, as ZipFile does.
+       *
+       * @param position the position of the candidate in the file
+       */
+      static boolean isEnd(ZipSource source, byte[] tail, int i, long position) throws IOException {
+         if (i + END_SIZE + le2(tail, i + 20) == tail.length) return true;
+         long directorySize = le4u(tail, i + 12);
+         long directoryOffset = le4u(tail, i + 16);
+         if (directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL)
+            return i >= ZIP64_LOCATOR_SIZE && le4(tail, i - ZIP64_LOCATOR_SIZE) == ZIP64_LOCATOR_SIGNATURE;
+         if (directoryOffset + directorySize != position) return false;
+         if (le2(tail, i + 10) == 0) return true;
+         byte[] header = new byte[4];
+         source.readFully(directoryOffset, header, 0, header.length);
+         return le4(header, 0) == CENTRAL_HEADER_SIGNATURE;
+      }
+
+      static ZipDirectory read(ZipSource source) throws IOException {
+         long size = source.size();
+         int tailSize = (int) Math.min(size, END_SIZE + MAX_COMMENT_SIZE);
+         byte[] tail = new byte[tailSize];
+         source.readFully(size - tailSize, tail, 0, tailSize);
+
+         // search backwards like ZipFile: the end record is followed by a comment up to 65535 bytes
+         int end = -1;
+         for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (le4(tail, i) == END_SIGNATURE && isEnd(source, tail, i, size - tailSize + i)) {
+               end = i;
+               break;
+            }
+         }
+         if (end == -1) throw new ZipException("end of central directory not found");
+
+         long entryCount = le2(tail, end + 10);
+         long directorySize = le4u(tail, end + 12);
+         long directoryOffset = le4u(tail, end + 16);
+
+         if (entryCount == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+            int locator = end - ZIP64_LOCATOR_SIZE;
+            if (locator < 0 || le4(tail, locator) != ZIP64_LOCATOR_SIGNATURE)
+               throw new ZipException("zip64 end of central directory locator not found");
+            byte[] zip64End = new byte[56];
+            source.readFully(le8(tail, locator + 8), zip64End, 0, zip64End.length);
+            if (le4(zip64End, 0) != ZIP64_END_SIGNATURE)
+               throw new ZipException("zip64 end of central directory not found");
+            entryCount = le8(zip64End, 32);
+            directorySize = le8(zip64End, 40);
+            directoryOffset = le8(zip64End, 48);
+         }
+         if (directorySize > Integer.MAX_VALUE || directoryOffset + directorySize > size)
+            throw new ZipException("invalid central directory");
+
+         byte[] directory = new byte[(int) directorySize];
+         source.readFully(directoryOffset, directory, 0, directory.length);
+
+         Map<String, ZipDirectoryEntry> entries = new LinkedHashMap<String, ZipDirectoryEntry>();
+         int offset = 0;
+         for (long i = 0; i < entryCount; i++) {
+            if (offset + 46 > directory.length || le4(directory, offset) != CENTRAL_HEADER_SIGNATURE)
+               throw new ZipException("invalid central directory header");
+            int method = le2(directory, offset + 10);
+            long crc = le4u(directory, offset + 16);
+            long compressedSize = le4u(directory, offset + 20);
+            long entrySize = le4u(directory, offset + 24);
+            int nameLength = le2(directory, offset + 28);
+            int extraLength = le2(directory, offset + 30);
+            int commentLength = le2(directory, offset + 32);
+            long localHeaderOffset = le4u(directory, offset + 42);
+            String name = new String(directory, offset + 46, nameLength, "UTF-8");
+
+            int extra = offset + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+               int headerId = le2(directory, extra);
+               int dataSize = le2(directory, extra + 2);
+               if (headerId == 0x0001) {
+                  int field = extra + 4;
+                  if (entrySize == 0xFFFFFFFFL) {
+                     entrySize = le8(directory, field);
+                     field += 8;
+                  }
+                  if (compressedSize == 0xFFFFFFFFL) {
+                     compressedSize = le8(directory, field);
+                     field += 8;
+                  }
+                  if (localHeaderOffset == 0xFFFFFFFFL) {
+                     localHeaderOffset = le8(directory, field);
+                  }
+               }
+               extra += 4 + dataSize;
+            }
+
+            entries.put(name, new ZipDirectoryEntry(name, method, crc, compressedSize, entrySize, localHeaderOffset));
+            offset = extraEnd + commentLength;
+         }
+         return new ZipDirectory(entries);
+      }
+
+      /**
+       * @return the position of the data of the entry.
+       */
+      static long dataOffset(ZipSource source, ZipDirectoryEntry entry) throws IOException {
+         byte[] header = new byte[30];
+         source.readFully(entry.localHeaderOffset, header, 0, header.length);
+         if (le4(header, 0) != LOCAL_HEADER_SIGNATURE)
+            throw new ZipException("invalid local header: " + entry.name);
+         return entry.localHeaderOffset + 30 + le2(header, 26) + le2(header, 28);
+      }
+
+      byte[] readEntry(ZipSource source, ZipDirectoryEntry entry) throws IOException {
+         if (entry.size > Integer.MAX_VALUE || entry.compressedSize > Integer.MAX_VALUE)
+            throw new ZipException("too large entry: " + entry.name);
+         byte[] compressed = new byte[(int) entry.compressedSize];
+         source.readFully(dataOffset(source, entry), compressed, 0, compressed.length);
+         if (entry.method == STORED) return compressed;
+         if (entry.method != DEFLATED)
+            throw new ZipException("unsupported compression method " + entry.method + ": " + entry.name);
+
+         byte[] bytes = new byte[(int) entry.size];
+         Inflater inflater = new Inflater(true);
+         try {
+            inflater.setInput(compressed);
+            int offset = 0;
+            while (offset < bytes.length) {
+               int inflated = inflater.inflate(bytes, offset, bytes.length - offset);
+               if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                  throw new ZipException("unexpected end of entry: " + entry.name);
+               offset += inflated;
+            }
+         } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage() + ": " + entry.name);
+         } finally {
+            inflater.end();
+         }
+         return bytes;
+      }
+
+      InputStream openEntry(ZipSource source, ZipDirectoryEntry entry) throws IOException {
+         if (entry.method != STORED && entry.method != DEFLATED)
+            throw new ZipException("unsupported compression method " + entry.method + ": " + entry.name);
+         return new ZipEntryInputStream(source, dataOffset(source, entry), entry.compressedSize,
+                 entry.method == DEFLATED);
+      }
+
+      static int le2(byte[] bytes, int index) {
+         return (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8;
+      }
+
+      static int le4(byte[] bytes, int index) {
+         return (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8
+                 | (bytes[index + 2] & 0xFF) << 16 | (bytes[index + 3] & 0xFF) << 24;
+      }
+
+      static long le4u(byte[] bytes, int index) {
+         return le4(bytes, index) & 0xFFFFFFFFL;
+      }
+
+      static long le8(byte[] bytes, int index) {
+         return le4u(bytes, index) | le4u(bytes, index + 4) << 32;
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * Reads an entry from {@link ZipSource} with bounded buffer.
+    */
+   static class ZipEntryInputStream extends InputStream {
+      final ZipSource source;
+      final Inflater inflater;
+      final byte[] input;
+      long position;
+      long remaining;
+
+      ZipEntryInputStream(ZipSource source, long position, long compressedSize, boolean deflated) {
+         this.source = source;
+         this.position = position;
+         this.remaining = compressedSize;
+         this.inflater = deflated ? new Inflater(true) : null;
+         this.input = deflated ? new byte[8 << 10] : null;
+      }
+
+      @Override
+      public int read() throws IOException {
+         byte[] b = new byte[1];
+         return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0) return 0;
+         if (inflater == null) {
+            if (remaining == 0) return -1;
+            int cnt = (int) Math.min(len, remaining);
+            source.readFully(position, b, off, cnt);
+            position += cnt;
+            remaining -= cnt;
+            return cnt;
+         }
+         try {
+            while (true) {
+               if (inflater.finished()) return -1;
+               if (inflater.needsInput()) {
+                  if (remaining == 0) throw new EOFException("unexpected end of deflated entry");
+                  int cnt = (int) Math.min(input.length, remaining);
+                  source.readFully(position, input, 0, cnt);
+                  position += cnt;
+                  remaining -= cnt;
+                  inflater.setInput(input, 0, cnt);
+               }
+               int inflated = inflater.inflate(b, off, len);
+               if (inflated != 0) return inflated;
+               if (inflater.needsDictionary()) throw new ZipException("dictionary is not supported");
+            }
+         } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+         }
+      }
+
+      @Override
+      public void close() {
+         if (inflater != null) inflater.end();
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   static class ByteBufferZipSource implements ZipSource {
+      final ByteBuffer buffer;
+
+      ByteBufferZipSource(ByteBuffer buffer) {
+         this.buffer = buffer;
+      }
+
+      @Override
+      public long size() {
+         return buffer.capacity();
+      }
+
+      @Override
+      public void readFully(long position, byte[] bytes, int offset, int length) throws IOException {
+         if (position < 0 || position + length > buffer.capacity()) throw new EOFException();
+         // duplicate to be thread safe
+         ByteBuffer duplicate = buffer.duplicate();
+         duplicate.position((int) position);
+         duplicate.get(bytes, offset, length);
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The part of other {@link ZipSource}. Used for jars stored without compression in jars.
+    */
+   static class SliceZipSource implements ZipSource {
+      final ZipSource source;
+      final long offset;
+      final long size;
+
+      SliceZipSource(ZipSource source, long offset, long size) {
+         this.source = source;
+         this.offset = offset;
+         this.size = size;
+      }
+
+      @Override
+      public long size() {
+         return size;
+      }
+
+      @Override
+      public void readFully(long position, byte[] bytes, int offset, int length) throws IOException {
+         if (position < 0 || position + length > size) throw new EOFException();
+         source.readFully(this.offset + position, bytes, offset, length);
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The jar stored without compression in a jar. This is a memory-mapped view of the outer jar
+    * so nothing is written to disk nor kept in heap.
+    */
+   static class NestedJar {
+      final String name;
+      final ZipSource source;
+      final ZipDirectory directory;
+
+      NestedJar(String name, ZipSource source, ZipDirectory directory) {
+         this.name = name;
+         this.source = source;
+         this.directory = directory;
+      }
+
+      /**
+       * @return the nested jar. null if the jar is compressed because it must be inflated
+       * and kept in heap while the game is running.
+       */
+      static NestedJar open(File outer, String entryName) throws IOException {
+         FileZipSource source = new FileZipSource(outer);
+         try {
+            ZipDirectory outerDirectory = ZipDirectory.read(source);
+            ZipDirectoryEntry entry = outerDirectory.getEntry(entryName);
+            if (entry == null) throw new FileNotFoundException(entryName + " in " + outer);
+            if (entry.method != ZipDirectory.STORED) return null;
+            // the mapping is valid after the channel is closed
+            ByteBuffer buffer = source.channel.map(FileChannel.MapMode.READ_ONLY,
+                    ZipDirectory.dataOffset(source, entry), entry.size);
+            ByteBufferZipSource nested = new ByteBufferZipSource(buffer);
+            return new NestedJar(outer.getName() + "!/" + entryName, nested, ZipDirectory.read(nested));
+         } finally {
+            source.close();
+         }
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * Finds kotlin in jars in the mod like {@code META-INF/libraries/*.jar} of Forge {@code ContainedDeps}
+    * or jar-in-jar of other loaders. Jars stored without compression are read as a part of outer jar and
+    * compressed jars are read as a stream, keeping only the entries needed to detect kotlin version,
+    * so nothing is extracted to disk and memory usage doesn't depend on the size of nested jars.
+    */
+   static class NestedJarScanner {
+      static final int MAX_DEPTH = 3;
+      static final String librariesDir = "META-INF/libraries/";
+
+      final String modName;
+      final EnumSet<KotlinLibrary> shadowed = EnumSet.noneOf(KotlinLibrary.class);
+      String version;
+
+      NestedJarScanner(String modName) {
+         this.modName = modName;
+      }
+
+      /**
+       * Scans jars in the jar. Jars listed in {@code MCKT-KT-Jars} are skipped because they are
+       * handled as MCKT manifest.
+       */
+      void scan(ZipSource source, ZipDirectory directory, Manifest manifest) {
+         Set<String> skip = new HashSet<String>();
+         if (manifest != null) {
+            String jars = manifest.getMainAttributes().getValue("MCKT-KT-Jars");
+            if (jars != null) {
+               for (String jar : jars.split(",")) skip.add(jar.trim());
+            }
+         }
+         scan(source, directory, skip, 0);
+      }
+
+      void scan(ZipSource source, ZipDirectory directory, Set<String> skip, int depth) {
+         for (ZipDirectoryEntry entry : directory.entries.values()) {
+            if (!isJar(entry.name) || skip.contains(entry.name)) continue;
+            try {
+               if (entry.method == ZipDirectory.STORED) {
+                  scanStored(source, entry, depth);
+               } else {
+                  InputStream stream = directory.openEntry(source, entry);
+                  try {
+                     scanStream(entry.name, stream, depth);
+                  } finally {
+                     stream.close();
+                  }
+               }
+            } catch (IOException e) {
+               log("can't read " + entry.name + " in " + modName + ": " + e);
+            }
+         }
+      }
+
+      void scanStored(ZipSource source, ZipDirectoryEntry entry, int depth) throws IOException {
+         SliceZipSource slice = new SliceZipSource(source, ZipDirectory.dataOffset(source, entry), entry.size);
+         ZipDirectory directory = ZipDirectory.read(slice);
+         found(entry.name, new JarProbe(slice, directory));
+         if (depth + 1 < MAX_DEPTH)
+            scan(slice, directory, Collections.<String>emptySet(), depth + 1);
+      }
+
+      void scanStream(String name, InputStream stream, int depth) throws IOException {
+         StreamedJarEntrySource jar = new StreamedJarEntrySource();
+         ZipInputStream zip = new ZipInputStream(stream);
+         ZipEntry entry;
+         while ((entry = zip.getNextEntry()) != null) {
+            if (entry.isDirectory()) continue;
+            if (jar.accept(entry.getName(), zip)) continue;
+            if (depth + 1 < MAX_DEPTH && isJar(entry.getName())) {
+               // the ZipInputStream for nested jar must not close this stream
+               scanStream(entry.getName(), new FilterInputStream(zip) {
+                  @Override
+                  public void close() {
+                  }
+               }, depth + 1);
+            }
+         }
+         found(name, jar);
+      }
+
+      void found(String name, JarEntrySource jar) throws IOException {
+         EnumSet<KotlinLibrary> libs = EnumSet.noneOf(KotlinLibrary.class);
+         for (KotlinLibrary value : KotlinLibrary.VALUES) {
+            if (jar.hasEntry(value.detectClassFileName)) libs.add(value);
+         }
+         if (libs.isEmpty()) return;
+         log("Kotlin " + libs + " found in " + name + " in " + modName);
+         shadowed.addAll(libs);
+         if (!libs.contains(KotlinLibrary.KotlinStdlib)) return;
+
+         // class loading is not possible for streamed jars so uses only class file and manifest
+         String found = KotlinVersionClassReader.readCurrentVersion(jar);
+         if (found == null) found = KotlinVersionClassReader.readManifestVersion(jar.getManifest());
+         if (found == null) {
+            log("Kotlin version of " + name + " in " + modName + " can't be read");
+            return;
+         }
+         version = newer(version, found);
+      }
+
+      static boolean isJar(String name) {
+         return name.endsWith(".jar");
+      }
+
+      static String newer(String a, String b) {
+         if (a == null) return b;
+         if (b == null) return a;
+         return KotlinVersion.compareVersion(KotlinVersion.parseVersionNullable(a),
+                 KotlinVersion.parseVersionNullable(b)) >= 0 ? a : b;
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The location of jar in a jar on local file system.
+    */
+   static class JarInJarLocation {
+      final File outer;
+      final String entryName;
+
+      JarInJarLocation(File outer, String entryName) {
+         this.outer = outer;
+         this.entryName = entryName;
+      }
+
+      /**
+       * @param jarUrl the URL like {@code jar:file:/path/to/mod.jar!/libs/kotlin-stdlib.jar}
+       * @return the location. null if the URL is not a jar URL or the outer jar is not a local file.
+       */
+      static JarInJarLocation parse(URL jarUrl) {
+         String spec = jarUrl.toString();
+         int separator = spec.indexOf("!/");
+         if (!spec.startsWith("jar:") || separator == -1) return null;
+         File outer;
+         try {
+            URI outerUri = new URI(spec.substring("jar:".length(), separator));
+            if (!"file".equals(outerUri.getScheme())) return null;
+            outer = new File(outerUri);
+         } catch (URISyntaxException e) {
+            return null;
+         } catch (IllegalArgumentException e) {
+            return null;
+         }
+         return new JarInJarLocation(outer, NestedJarURLStreamHandler.decodePath(spec.substring(separator + 2)));
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The lock of a file in the cache shared by processes, like many servers on one host.
+    * Each file has two bytes in {@code cache.lock} of the cache directory, chosen by the hash of its path.
+    * Writers hold the exclusive lock of the first byte while creating the file so only one process creates it
+    * and others wait and reuse it. Readers don't lock to read because files are written to temporary files
+    * and renamed after they're complete and verified, but hold the shared lock of the second byte while they're
+    * running so {@link CacheCleaner} doesn't remove files in use.
+    * The lock file is never removed, so all processes always lock the same file, and a process opens it once.
+    * Files with the same hash share the bytes, which only makes writers wait or keeps the files longer.
+    */
+   static class CacheLock implements Closeable {
+      static final String fileName = q("<cache.lock>");
+      static final int SLOTS = 1 << 16;
+      static final long WRITE_REGION = 0;
+      static final long USE_REGION = 1;
+
+      // FileLock is held by the whole JVM so threads in the same process are serialized with this first
+      static final ConcurrentHashMap<String, ReentrantLock> processLocks = new ConcurrentHashMap<String, ReentrantLock>();
+      // on POSIX systems, closing any channel of a file releases all locks of the process on the file
+      // so the channel of the lock file is shared and not closed
+      static final Map<String, FileChannel> channels = new HashMap<String, FileChannel>();
+      // the shared locks of the files used by this process. held until this process exits
+      static final Map<String, FileLock> usedLocks = new HashMap<String, FileLock>();
+
+      final ReentrantLock processLock;
+      // null if this thread holds the lock for another file with the same hash
+      final FileLock lock;
+
+      CacheLock(ReentrantLock processLock, FileLock lock) {
+         this.processLock = processLock;
+         this.lock = lock;
+      }
+
+      /**
+       * Waits until other threads and processes creating {@code target} finish.
+       */
+      static CacheLock acquire(File target) throws IOException {
+         // the writer creates the file in the directory
+         target.getParentFile().mkdirs();
+         File lockFile = lockFile();
+         long position = positionOf(target);
+         ReentrantLock processLock = processLockOf(lockFile, position);
+         processLock.lock();
+         if (processLock.getHoldCount() > 1) return new CacheLock(processLock, null);
+         try {
+            FileChannel channel = channelOf(lockFile);
+            FileLock lock = channel.tryLock(position + WRITE_REGION, 1, false);
+            if (lock == null) {
+               log("waiting for other process creating " + target.getName());
+               lock = channel.lock(position + WRITE_REGION, 1, false);
+            }
+            return new CacheLock(processLock, lock);
+         } catch (IOException e) {
+            processLock.unlock();
+            throw e;
+         } catch (RuntimeException e) {
+            processLock.unlock();
+            throw e;
+         }
+      }
+
+      /**
+       * Locks {@code target} to remove it if no processes are using or creating it.
+       *
+       * @return the lock. null if the file is in use.
+       */
+      static CacheLock tryAcquireUnused(File target) throws IOException {
+         File lockFile = lockFile();
+         long position = positionOf(target);
+         ReentrantLock processLock = processLockOf(lockFile, position);
+         if (!processLock.tryLock()) return null;
+         try {
+            FileLock lock = null;
+            synchronized (CacheLock.class) {
+               if (processLock.getHoldCount() == 1 && !usedLocks.containsKey(keyOf(lockFile, position)))
+                  lock = channelOf(lockFile).tryLock(position, 2, false);
+            }
+            if (lock == null) {
+               processLock.unlock();
+               return null;
+            }
+            return new CacheLock(processLock, lock);
+         } catch (IOException e) {
+            processLock.unlock();
+            throw e;
+         } catch (RuntimeException e) {
+            processLock.unlock();
+            throw e;
+         }
+      }
+
+      /**
+       * Marks the file in the cache used by this process until it exits.
+       * Files out of the cache directory are not marked.
+       *
+       * @return false if the file doesn't exist, for example removed by other process just before.
+       */
+      static boolean markUsed(File file) {
+         if (!CacheCleaner.isInCache(file)) return file.isFile();
+         File lockFile = lockFile();
+         long position = positionOf(file);
+         ReentrantLock processLock = processLockOf(lockFile, position);
+         processLock.lock();
+         try {
+            synchronized (CacheLock.class) {
+               String key = keyOf(lockFile, position);
+               // waits for the cleaner of other process removing the file
+               if (!usedLocks.containsKey(key))
+                  usedLocks.put(key, channelOf(lockFile).lock(position + USE_REGION, 1, true));
+            }
+            if (!file.isFile()) return false;
+            CacheCleaner.recordUse(file);
+            return true;
+         } catch (IOException e) {
+            log("failed to mark " + file + " used: " + e);
+            return file.isFile();
+         } finally {
+            processLock.unlock();
+         }
+      }
+
+      static File lockFile() {
+         return new File(getCacheBase(), fileName);
+      }
+
+      static long positionOf(File target) {
+         return 2L * ((target.getAbsolutePath().hashCode() & Integer.MAX_VALUE) % SLOTS);
+      }
+
+      static String keyOf(File lockFile, long position) {
+         return lockFile.getAbsolutePath() + '#' + position;
+      }
+
+      static ReentrantLock processLockOf(File lockFile, long position) {
+         String key = keyOf(lockFile, position);
+         ReentrantLock processLock = processLocks.get(key);
+         if (processLock == null) {
+            ReentrantLock created = new ReentrantLock();
+            processLock = processLocks.putIfAbsent(key, created);
+            if (processLock == null) processLock = created;
+         }
+         return processLock;
+      }
+
+      static synchronized FileChannel channelOf(File lockFile) throws IOException {
+         String key = lockFile.getAbsolutePath();
+         FileChannel channel = channels.get(key);
+         if (channel == null) {
+            lockFile.getParentFile().mkdirs();
+            channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            channels.put(key, channel);
+         }
+         return channel;
+      }
+
+      @Override
+      public void close() {
+         try {
+            if (lock != null) lock.release();
+         } catch (IOException e) {
+            log("failed to release cache lock: " + e);
+         } finally {
+            processLock.unlock();
+         }
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * Removes files nobody uses from the cache at startup on a background thread.
+    * <ul>
+    *    <li>temporary files of writers which crashed</li>
+    *    <li>if {@code clean-temp-dir} is true, {@code mckt*.jar} copies the old versions left in
+    *        {@code java.io.tmpdir} which no process holds open or locked</li>
+    *    <li>if {@code cache-max-age} or {@code cache-max-size} is specified, least recently used jars over them</li>
+    * </ul>
+    * The last use of a jar is recorded as the last modified time of {@code <jar>.used} because the last modified
+    * time of jars is a part of the stamps. Jars used by running processes are never removed because they hold
+    * the shared lock of it while running.
+    */
+   static class CacheCleaner {
+      // writers finish in this time
+      static final long TEMP_FILE_AGE = 60 * 60 * 1000L;
+      // the old versions copied jars in jar to java.io.tmpdir at every launch
+      static final long LEGACY_TEMP_FILE_AGE = 24 * 60 * 60 * 1000L;
+      static final Pattern tempFileName = Pattern.compile(".+\\.tmp");
+      static final Pattern legacyTempFileName = Pattern.compile("mckt-?\\d+\\.jar");
+      static final String[] sidecars = { ".sha1", ".stamp", ".used" };
+
+      static void start() {
+         Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  long start = System.nanoTime();
+                  int removed = clean(System.currentTimeMillis());
+                  if (removed != 0)
+                     log("removed " + removed + " unused files from cache in " + (System.nanoTime() - start) / 1000000 + " ms");
+               } catch (IOException e) {
+                  log("failed to clean cache: " + e);
+               }
+            }
+         }, "MCKT-Resolver-Cleaner");
+         thread.setDaemon(true);
+         thread.setPriority(Thread.MIN_PRIORITY);
+         thread.start();
+      }
+
+      static int clean(long now) throws IOException {
+         int removed = 0;
+         if (getBoolean(cleanTempDirPropName, false))
+            removed += removeLegacyTempFiles(new File(System.getProperty("java.io.tmpdir")), now - LEGACY_TEMP_FILE_AGE);
+         for (File dir : cacheDirs()) {
+            removed += removeOldFiles(dir, tempFileName, now - TEMP_FILE_AGE);
+         }
+
+         Integer maxAgeDays = getInteger(cacheMaxAgePropName);
+         Integer maxSizeMiB = getInteger(cacheMaxSizePropName);
+         if (maxAgeDays == null && maxSizeMiB == null) return removed;
+         long minLastUse = maxAgeDays == null ? Long.MIN_VALUE : now - maxAgeDays * 24L * 60 * 60 * 1000;
+         long maxSize = maxSizeMiB == null ? Long.MAX_VALUE : maxSizeMiB * 1024L * 1024;
+         removed += evict(listJars(), minLastUse, maxSize);
+         removed += removeDanglingRecords(new File(getCacheBase(), ExtractedJarCache.extractedDir));
+         return removed;
+      }
+
+      static File[] cacheDirs() {
+         File base = getCacheBase();
+         return new File[] {
+                 base,
+                 new File(System.getProperty("user.home"), MCKTKotlinCacheFinder.cacheDir),
+                 new File(base, ExtractedJarCache.extractedDir),
+                 new File(base, ExtractedJarCache.extractedDir + "/crc"),
+                 new File(base, MergedRuntimeJar.mergedDir),
+         };
+      }
+
+      static boolean isInCache(File file) {
+         return file.getAbsolutePath().startsWith(getCacheBase().getAbsolutePath() + File.separator);
+      }
+
+      static void recordUse(File jar) throws IOException {
+         File used = new File(jar + ".used");
+         if (used.setLastModified(System.currentTimeMillis())) return;
+         new FileOutputStream(used).close();
+      }
+
+      static long lastUse(File jar) {
+         long used = new File(jar + ".used").lastModified();
+         return used != 0 ? used : jar.lastModified();
+      }
+
+      static int removeOldFiles(File dir, Pattern name, long before) {
+         int removed = 0;
+         for (File file : orEmpty(dir.listFiles())) {
+            if (!file.isFile() || !name.matcher(file.getName()).matches()) continue;
+            if (file.lastModified() < before && file.delete()) removed++;
+         }
+         return removed;
+      }
+
+      /**
+       * Removes {@code mckt*.jar} the old versions left. The old versions inject them without locking so
+       * they're removed only if no process of this user holds them open or locked.
+       * On Windows, files opened by other processes can't be deleted so the open files are not checked.
+       */
+      static int removeLegacyTempFiles(File dir, long before) {
+         boolean windows = System.getProperty("os.name", "").startsWith("Windows");
+         Set<String> openFiles = windows ? Collections.<String>emptySet() : openFiles();
+         if (openFiles == null) {
+            log("can't check processes using temporary files. " + dir + " is not cleaned.");
+            return 0;
+         }
+         int removed = 0;
+         for (File file : orEmpty(dir.listFiles())) {
+            if (!file.isFile() || !legacyTempFileName.matcher(file.getName()).matches()) continue;
+            if (file.lastModified() >= before) continue;
+            try {
+               if (openFiles.contains(file.getCanonicalPath()) || isLocked(file)) continue;
+            } catch (IOException e) {
+               continue;
+            }
+            if (file.delete()) removed++;
+         }
+         return removed;
+      }
+
+      /**
+       * Lists the files opened by processes readable from this process.
+       *
+       * @return the canonical paths of the open files. null if {@code /proc} is not available.
+       */
+      static Set<String> openFiles() {
+         File proc = new File("/proc");
+         if (!new File(proc, "self/fd").isDirectory()) return null;
+         Set<String> files = new HashSet<String>();
+         for (File process : orEmpty(proc.listFiles())) {
+            if (!isDigits(process.getName())) continue;
+            // fd of processes of other users are not readable
+            for (File fd : orEmpty(new File(process, "fd").listFiles())) {
+               try {
+                  files.add(fd.getCanonicalPath());
+               } catch (IOException ignored) {
+                  // the process exited or closed it
+               }
+            }
+         }
+         return files;
+      }
+
+      static boolean isDigits(String name) {
+         if (name.isEmpty()) return false;
+         for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || '9' < name.charAt(i)) return false;
+         }
+         return true;
+      }
+
+      static boolean isLocked(File file) throws IOException {
+         RandomAccessFile access = new RandomAccessFile(file, "rw");
+         try {
+            FileLock lock = access.getChannel().tryLock();
+            if (lock == null) return true;
+            lock.release();
+            return false;
+         } catch (OverlappingFileLockException e) {
+            return true;
+         } finally {
+            access.close();
+         }
+      }
+
+      static List<File> listJars() {
+         List<File> jars = new ArrayList<File>();
+         for (File dir : cacheDirs()) {
+            for (File file : orEmpty(dir.listFiles())) {
+               if (file.isFile() && file.getName().endsWith(".jar")) jars.add(file);
+            }
+         }
+         return jars;
+      }
+
+      /**
+       * Removes jars not used after {@code minLastUse} and least recently used jars while the total size is over
+       * {@code maxSize}.
+       */
+      static int evict(List<File> jars, long minLastUse, long maxSize) throws IOException {
+         final Map<File, Long> lastUses = new HashMap<File, Long>();
+         long size = 0;
+         for (File jar : jars) {
+            lastUses.put(jar, lastUse(jar));
+            size += jar.length();
+         }
+         List<File> sorted = new ArrayList<File>(jars);
+         Collections.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+               long a = lastUses.get(o1);
+               long b = lastUses.get(o2);
+               return a < b ? -1 : a == b ? 0 : 1;
+            }
+         });
+
+         int removed = 0;
+         for (File jar : sorted) {
+            long lastUse = lastUses.get(jar);
+            if (lastUse >= minLastUse && size <= maxSize) break;
+            long length = jar.length();
+            if (remove(jar, lastUse)) {
+               log("removed " + jar.getName() + " from cache");
+               size -= length;
+               removed++;
+            }
+         }
+         return removed;
+      }
+
+      /**
+       * @return false if the jar is used by any process.
+       */
+      static boolean remove(File jar, long lastUse) throws IOException {
+         CacheLock lock = CacheLock.tryAcquireUnused(jar);
+         if (lock == null) return false;
+         try {
+            // used by other process after listed
+            if (lastUse(jar) != lastUse) return false;
+            for (String sidecar : sidecars) {
+               new File(jar + sidecar).delete();
+            }
+            return jar.delete();
+         } finally {
+            lock.close();
+         }
+      }
+
+      static int removeDanglingRecords(File extractedDir) {
+         int removed = 0;
+         for (File record : orEmpty(new File(extractedDir, "crc").listFiles())) {
+            if (!record.isFile()) continue;
+            String sha1 = ExtractedJarCache.readRecord(record);
+            if (sha1 != null && new File(extractedDir, sha1 + ".jar").isFile()) continue;
+            if (record.delete()) removed++;
+         }
+         return removed;
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The content-addressed store of extracted jars in jar.
+    * Jars are stored as {@code extracted/<sha1>.jar}, and {@code extracted/crc/<crc32>-<size>} records
+    * the SHA-1 of the jar with the CRC and size in the central directory of the outer jar.
+    * If the record exists, the jar is reused without reading or hashing.
+    */
+   static class ExtractedJarCache {
+      static File extract(URL jarUrl) throws IOException {
+         return extract(jarUrl, null);
+      }
+
+      /**
+       * @param sha1 the SHA-1 of the jar declared by MCKT manifest. nullable.
+       *             If the jar of it is in the cache, the jar is used without reading the mod.
+       */
+      static File extract(URL jarUrl, String sha1) throws IOException {
+         File dir = new File(getCacheBase(), extractedDir);
+         if (sha1 != null) {
+            File jar = new File(dir, sha1 + ".jar");
+            if (CacheLock.markUsed(jar)) return jar;
+            jar = extract0(dir, jarUrl);
+            if (!jar.getName().equals(sha1 + ".jar"))
+               throw new IOException("SHA-1 of " + jarUrl + " doesn't match MCKT-KT-Jars-SHA1");
+            return jar;
+         }
+         return extract0(dir, jarUrl);
+      }
+
+      static File extract0(File dir, URL jarUrl) throws IOException {
+         JarInJarLocation location = JarInJarLocation.parse(jarUrl);
+         if (location == null) {
+            InputStream in = openStreamWithoutCaches(jarUrl);
+            File jar;
+            try {
+               jar = store(dir, in, null);
+            } finally {
+               in.close();
+            }
+            CacheLock.markUsed(jar);
+            return jar;
+         }
+
+         JarProbe probe = JarProbe.open(location.outer);
+         try {
+            ZipDirectoryEntry entry = probe.directory.getEntry(location.entryName);
+            if (entry == null) throw new FileNotFoundException(location.entryName + " in " + location.outer);
+
+            File crcRecord = new File(dir, "crc/" + Long.toHexString(entry.crc) + '-' + entry.size);
+            File jar = findRecorded(dir, crcRecord, entry);
+            if (jar != null) return jar;
+
+            CacheLock lock = CacheLock.acquire(crcRecord);
+            try {
+               // other process may have extracted it while waiting for the lock
+               jar = findRecorded(dir, crcRecord, entry);
+               if (jar != null) return jar;
+
+               InputStream in = probe.directory.openEntry(probe.source, entry);
+               try {
+                  jar = store(dir, in, entry);
+               } finally {
+                  in.close();
+               }
+               CacheLock.markUsed(jar);
+               writeRecord(crcRecord, jar.getName().substring(0, jar.getName().length() - ".jar".length()));
+               return jar;
+            } finally {
+               lock.close();
+            }
+         } finally {
+            probe.close();
+         }
+      }
+
+      static File findRecorded(File dir, File crcRecord, ZipDirectoryEntry entry) {
+         String sha1 = readRecord(crcRecord);
+         if (sha1 == null) return null;
+         File jar = new File(dir, sha1 + ".jar");
+         if (jar.length() == entry.size && CacheLock.markUsed(jar)) return jar;
+         return null;
+      }
+
+      /**
+       * Copies the stream to the store while computing SHA-1.
+       *
+       * @param entry the central directory entry of the jar to check the CRC. nullable.
+       */
+      static File store(File dir, InputStream in, ZipDirectoryEntry entry) throws IOException {
+         dir.mkdirs();
+         File tmp = File.createTempFile("extracting", ".tmp", dir);
+         try {
+            DigesterOutputStream digester = new DigesterOutputStream(getSha1());
+            CRC32 crc = new CRC32();
+            OutputStream out = null;
+            try {
+               out = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), crc);
+               copy(in, out, digester);
+            } finally {
+               if (out != null) out.close();
+            }
+            if (entry != null && (crc.getValue() != entry.crc || tmp.length() != entry.size))
+               throw new ZipException("CRC or size mismatch: " + entry.name);
+
+            File jar = new File(dir, new String(toHexBytes(digester.digest.digest()), "US-ASCII") + ".jar");
+            if (jar.isFile() && jar.length() == tmp.length()) return jar;
+            replaceFile(tmp, jar);
+            return jar;
+         } finally {
+            tmp.delete();
+         }
+      }
+
+      static String readRecord(File record) {
+         String sha1 = readTextFile(record);
+         if (sha1 == null || sha1.length() != 40) return null;
+         return sha1;
+      }
+
+      static void writeRecord(File record, String sha1) {
+         try {
+            writeTextFile(record, sha1);
+         } catch (IOException e) {
+            log("failed to write extracted jar record: " + e);
+         }
+      }
+
+      static final String extractedDir = q("<extracted>");
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * Loads commonly used kotlin classes on a background thread while other mods are loaded.
+    * With {@code record} mode, the kotlin classes loaded in the run are recorded at the shutdown
+    * and loaded in the next run.
+    */
+   static class ClassWarmUp {
+      static final String recordFileName = q("<warm-up-classes.txt>");
+      static final String kotlinPackagePrefix = q("<kotlin.>");
+      // readTextFile reads up to 64 KiB
+      static final int MAX_RECORDED = 1000;
+
+      static final String[] defaultClasses = {
+              q("<kotlin.jvm.internal.Intrinsics>"),
+              q("<kotlin.Unit>"),
+              q("<kotlin.Pair>"),
+              q("<kotlin.TuplesKt>"),
+              q("<kotlin.LazyKt>"),
+              q("<kotlin.SynchronizedLazyImpl>"),
+              q("<kotlin.jvm.internal.Lambda>"),
+              q("<kotlin.jvm.internal.Reflection>"),
+              q("<kotlin.jvm.internal.Ref$ObjectRef>"),
+              q("<kotlin.collections.CollectionsKt>"),
+              q("<kotlin.collections.ArraysKt>"),
+              q("<kotlin.collections.MapsKt>"),
+              q("<kotlin.collections.SetsKt>"),
+              q("<kotlin.collections.EmptyList>"),
+              q("<kotlin.collections.EmptyMap>"),
+              q("<kotlin.collections.EmptySet>"),
+              q("<kotlin.text.StringsKt>"),
+              q("<kotlin.text.Regex>"),
+              q("<kotlin.ranges.RangesKt>"),
+              q("<kotlin.ranges.IntRange>"),
+              q("<kotlin.sequences.SequencesKt>"),
+              q("<kotlin.coroutines.CoroutineContext>"),
+              q("<kotlin.coroutines.EmptyCoroutineContext>"),
+              q("<kotlin.coroutines.intrinsics.IntrinsicsKt>"),
+              q("<kotlin.coroutines.jvm.internal.ContinuationImpl>"),
+      };
+
+      static void startIfEnabled(final ClassLoader loader) {
+         String mode = System.getProperty(warmUpPropName);
+         if (mode == null) return;
+         mode = mode.trim();
+         boolean record = "record".equals(mode);
+         if (!record && !Boolean.parseBoolean(mode)) return;
+
+         final List<String> classes = getClassNames();
+         Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               long start = System.nanoTime();
+               int loaded = ClassWarmUp.run(loader, classes);
+               log("warmed up " + loaded + " kotlin classes in " + (System.nanoTime() - start) / 1000000 + " ms");
+            }
+         }, "MCKT-Resolver-WarmUp");
+         thread.setDaemon(true);
+         thread.setPriority(Thread.MIN_PRIORITY);
+         thread.start();
+
+         if (record) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+               @Override
+               public void run() {
+                  record(loader);
+               }
+            }, "MCKT-Resolver-WarmUp-Recorder"));
+         }
+      }
+
+      /**
+       * @return the classes in the property, the recorded classes or the default classes.
+       */
+      static List<String> getClassNames() {
+         String property = System.getProperty(warmUpClassesPropName);
+         if (property != null) return parseClassNames(property.replace(',', '\n'));
+         String recorded = readTextFile(getRecordFile());
+         if (recorded != null) return parseClassNames(recorded);
+         return Arrays.asList(defaultClasses);
+      }
+
+      static List<String> parseClassNames(String text) {
+         List<String> names = new ArrayList<String>();
+         for (String line : text.split("\n")) {
+            String name = line.trim();
+            if (name.startsWith(kotlinPackagePrefix))
+               names.add(name);
+         }
+         return names;
+      }
+
+      /**
+       * Loads and initializes the classes. Only classes in {@code kotlin} package are loaded
+       * because initializing them doesn't have side effects.
+       *
+       * @return the count of the classes loaded.
+       */
+      static int run(ClassLoader loader, List<String> classes) {
+         int loaded = 0;
+         for (String name : classes) {
+            if (!name.startsWith(kotlinPackagePrefix)) continue;
+            try {
+               Class.forName(name, true, loader);
+               loaded++;
+            } catch (ClassNotFoundException ignored) {
+               // the class may be removed in this kotlin version
+            } catch (LinkageError e) {
+               log("failed to warm up " + name + ": " + e);
+            }
+         }
+         return loaded;
+      }
+
+      static void record(ClassLoader loader) {
+         List<String> names = loadedKotlinClasses(loader);
+         if (names == null) return;
+         StringBuilder builder = new StringBuilder();
+         for (String name : names) {
+            builder.append(name).append('\n');
+         }
+         try {
+            writeTextFile(getRecordFile(), builder.toString());
+         } catch (IOException e) {
+            log("failed to record warm-up classes: " + e);
+         }
+      }
+
+      /**
+       * Reads the classes defined by the loader from {@code ClassLoader.classes}.
+       *
+       * @return the names of the kotlin classes in the loaded order. null if the field is not accessible.
+       */
+      static List<String> loadedKotlinClasses(ClassLoader loader) {
+         Object[] classes;
+         try {
+            Field field = ClassLoader.class.getDeclaredField("classes");
+            field.setAccessible(true);
+            classes = ((Collection<?>) field.get(loader)).toArray();
+         } catch (Exception e) {
+            log("can't record loaded classes: " + e);
+            return null;
+         }
+         List<String> names = new ArrayList<String>();
+         for (Object clazz : classes) {
+            String name = ((Class<?>) clazz).getName();
+            if (name.startsWith(kotlinPackagePrefix)) {
+               names.add(name);
+               if (names.size() == MAX_RECORDED) break;
+            }
+         }
+         return names;
+      }
+
+      static File getRecordFile() {
+         return new File(getCacheBase(), recordFileName);
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * Merges kotlin libraries into one jar so class lookups open only one jar.
+    * The merged jar is stored as {@code merged/<key>.jar} where the key is SHA-1 of the names and SHA-1s of the libraries.
+    * It has {@code META-INF/INDEX.LIST} listing the packages in the jar.
+    */
+   static class MergedRuntimeJar {
+      static File getOrCreate(Map<KotlinLibrary, File> jars) throws IOException {
+         File dir = new File(getCacheBase(), mergedDir);
+         String key = keyOf(jars);
+         File merged = new File(dir, key + ".jar");
+         if (CacheLock.markUsed(merged)) return merged;
+
+         CacheLock lock = CacheLock.acquire(merged);
+         try {
+            // other process may have merged them while waiting for the lock
+            if (CacheLock.markUsed(merged)) return merged;
+            File tmp = File.createTempFile("merging", ".tmp", dir);
+            try {
+               write(jars.values(), merged.getName(), tmp);
+               replaceFile(tmp, merged);
+            } finally {
+               tmp.delete();
+            }
+            CacheLock.markUsed(merged);
+         } finally {
+            lock.close();
+         }
+         return merged;
+      }
+
+      static String keyOf(Map<KotlinLibrary, File> jars) throws IOException {
+         MessageDigest sha1 = getSha1();
+         for (Map.Entry<KotlinLibrary, File> entry : jars.entrySet()) {
+            sha1.update((entry.getKey().libName + ' ' + hashOf(entry.getValue()) + '\n').getBytes("UTF-8"));
+         }
+         return new String(toHexBytes(sha1.digest()), "US-ASCII");
+      }
+
+      /**
+       * Uses {@code .sha1} next to the jar or the name of extracted jar if exists to avoid hashing the jar.
+       * The jars downloaded by MCKTResolver are verified with it before.
+       */
+      static String hashOf(File jar) throws IOException {
+         // extracted jars are named with their SHA-1
+         if (jar.getParentFile() != null && jar.getParentFile().getName().equals(ExtractedJarCache.extractedDir)
+                 && sha1Name.matcher(jar.getName()).matches())
+            return jar.getName().substring(0, 40);
+         String sha1 = readTextFile(new File(jar + ".sha1"));
+         if (sha1 != null && sha1.length() == 40) return sha1.toLowerCase();
+         return sha1Of(jar);
+      }
+
+      static void write(Collection<File> jars, String name, File to) throws IOException {
+         List<JarFile> files = new ArrayList<JarFile>();
+         JarOutputStream out = null;
+         try {
+            for (File jar : jars) {
+               files.add(new JarFile(jar, false));
+            }
+
+            Manifest manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(to)), manifest);
+
+            out.putNextEntry(new JarEntry(indexName));
+            out.write(createIndex(files, name).getBytes("UTF-8"));
+            out.closeEntry();
+
+            // the first one wins like the class path
+            Set<String> written = new HashSet<String>();
+            Map<String, ByteArrayOutputStream> services = new LinkedHashMap<String, ByteArrayOutputStream>();
+            for (JarFile file : files) {
+               Enumeration<JarEntry> entries = file.entries();
+               while (entries.hasMoreElements()) {
+                  JarEntry entry = entries.nextElement();
+                  String entryName = entry.getName();
+                  if (entry.isDirectory() || isExcluded(entryName)) continue;
+                  InputStream in = file.getInputStream(entry);
+                  try {
+                     if (entryName.startsWith(servicesPrefix)) {
+                        ByteArrayOutputStream service = services.get(entryName);
+                        if (service == null) services.put(entryName, service = new ByteArrayOutputStream());
+                        copy(in, service);
+                        service.write('\n');
+                     } else if (written.add(entryName)) {
+                        out.putNextEntry(new JarEntry(entryName));
+                        copy(in, out);
+                        out.closeEntry();
+                     }
+                  } finally {
+                     in.close();
+                  }
+               }
+            }
+            for (Map.Entry<String, ByteArrayOutputStream> entry : services.entrySet()) {
+               out.putNextEntry(new JarEntry(entry.getKey()));
+               entry.getValue().writeTo(out);
+               out.closeEntry();
+            }
+         } finally {
+            if (out != null) out.close();
+            for (JarFile file : files) {
+               closeQuietly(file);
+            }
+         }
+      }
+
+      /**
+       * @return {@code META-INF/INDEX.LIST} lists the packages and the files at the root of the jar.
+       */
+      static String createIndex(List<JarFile> files, String name) {
+         Set<String> packages = new TreeSet<String>();
+         for (JarFile file : files) {
+            Enumeration<JarEntry> entries = file.entries();
+            while (entries.hasMoreElements()) {
+               String entryName = entries.nextElement().getName();
+               if (isExcluded(entryName) || entryName.startsWith("META-INF/")) continue;
+               int slash = entryName.lastIndexOf('/');
+               if (slash == -1) packages.add(entryName);
+               else if (slash != 0) packages.add(entryName.substring(0, slash));
+            }
+         }
+         StringBuilder builder = new StringBuilder();
+         builder.append("JarIndex-Version: 1.0\n\n");
+         builder.append(name).append('\n');
+         for (String pkg : packages) {
+            builder.append(pkg).append('\n');
+         }
+         builder.append('\n');
+         return builder.toString();
+      }
+
+      static boolean isExcluded(String entryName) {
+         if (entryName.equals(JarFile.MANIFEST_NAME) || entryName.equals(indexName)) return true;
+         // each module-info is for each library
+         if (entryName.endsWith("module-info.class")) return true;
+         if (entryName.startsWith("META-INF/")) {
+            String upper = entryName.toUpperCase();
+            return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC");
+         }
+         return false;
+      }
+
+      static final String mergedDir = q("<merged>");
+      static final Pattern sha1Name = Pattern.compile("[0-9a-f]{40}\\.jar");
+      static final String indexName = q("<META-INF/INDEX.LIST>");
+      static final String servicesPrefix = q("<META-INF/services/>");
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The URL handler serves {@link NestedJar}s as directory-like URLs so {@link URLClassLoader} can load classes
+    * from nested jars without extracting them.
+    * The URL is like {@code mckt-nested:/<id>/<entry name>}.
+    */
+   static class NestedJarURLStreamHandler extends URLStreamHandler {
+      static final NestedJarURLStreamHandler INSTANCE = new NestedJarURLStreamHandler();
+      static final String PROTOCOL = q("<mckt-nested>");
+
+      final Map<String, NestedJar> jars = new ConcurrentHashMap<String, NestedJar>();
+
+      /**
+       * @param jarUrl the URL like {@code jar:file:/path/to/mod.jar!/libs/kotlin-stdlib.jar}
+       * @return the URL for the nested jar. null if the outer jar is not a local file or the jar is compressed.
+       */
+      URL register(KotlinLibrary library, URL jarUrl) throws IOException {
+         JarInJarLocation location = JarInJarLocation.parse(jarUrl);
+         if (location == null) return null;
+         NestedJar jar = NestedJar.open(location.outer, location.entryName);
+         if (jar == null) return null;
+         String id = library.libName;
+         jars.put(id, jar);
+         return new URL(PROTOCOL, "", -1, "/" + id + "/", this);
+      }
+
+      @Override
+      protected URLConnection openConnection(URL u) throws IOException {
+         String path = u.getPath();
+         int slash = path.indexOf('/', 1);
+         if (!path.startsWith("/") || slash == -1) throw new MalformedURLException(u.toString());
+         NestedJar jar = jars.get(path.substring(1, slash));
+         if (jar == null) throw new FileNotFoundException(u.toString());
+         return new NestedJarURLConnection(u, jar, decodePath(path.substring(slash + 1)));
+      }
+
+      static String decodePath(String path) {
+         if (path.indexOf('%') == -1) return path;
+         try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+            for (int i = 0; i < path.length(); i++) {
+               char c = path.charAt(i);
+               if (c == '%' && i + 2 < path.length()) {
+                  bytes.write(Integer.parseInt(path.substring(i + 1, i + 3), 16));
+                  i += 2;
+               } else {
+                  bytes.write(String.valueOf(c).getBytes("UTF-8"));
+               }
+            }
+            return bytes.toString("UTF-8");
+         } catch (IOException e) {
+            throw new IllegalStateException(e);
+         } catch (NumberFormatException e) {
+            return path;
+         }
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   static class NestedJarURLConnection extends URLConnection {
+      final NestedJar jar;
+      final String entryName;
+      ZipDirectoryEntry entry;
+      InputStream stream;
+
+      NestedJarURLConnection(URL url, NestedJar jar, String entryName) {
+         super(url);
+         this.jar = jar;
+         this.entryName = entryName;
+      }
+
+      @Override
+      public void connect() throws IOException {
+         if (connected) return;
+         entry = jar.directory.getEntry(entryName);
+         if (entry == null) throw new FileNotFoundException(entryName + " in " + jar.name);
+         connected = true;
+      }
+
+      @Override
+      public synchronized InputStream getInputStream() throws IOException {
+         connect();
+         // URLClassLoader calls this twice: for checking existence and for reading.
+         if (stream == null) stream = new ByteArrayInputStream(jar.directory.readEntry(jar.source, entry));
+         return stream;
+      }
+
+      @Override
+      public int getContentLength() {
+         try {
+            connect();
+         } catch (IOException e) {
+            return -1;
+         }
+         return entry.size > Integer.MAX_VALUE ? -1 : (int) entry.size;
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The URL handler for libraries resolved at the first use. The URL is like {@code mckt-lazy:/kotlin-reflect/}.
+    * Resources out of the packages of the library are not found until the library is resolved
+    * so looking up classes of other libraries doesn't resolve it.
+    * After resolved, all resources in the library like {@code META-INF/services/} are found.
+    */
+   static class LazyLibraryURLStreamHandler extends URLStreamHandler {
+      static final LazyLibraryURLStreamHandler INSTANCE = new LazyLibraryURLStreamHandler();
+      static final String PROTOCOL = q("<mckt-lazy>");
+
+      static final EnumMap<KotlinLibrary, String[]> packages = new EnumMap<KotlinLibrary, String[]>(KotlinLibrary.class);
+
+      static {
+         packages.put(KotlinLibrary.KotlinReflect, new String[]{ q("<kotlin/reflect/full/>"), q("<kotlin/reflect/jvm/>") });
+      }
+
+      final Map<String, LazyLibrary> libraries = new ConcurrentHashMap<String, LazyLibrary>();
+
+      static boolean isDeferrable(KotlinLibrary library) {
+         return packages.containsKey(library);
+      }
+
+      /**
+       * @param resolver returns the URL of the jar or the URL of the directory like {@code mckt-nested:/kotlin-reflect/}.
+       */
+      URL register(KotlinLibrary library, Callable<URL> resolver) throws MalformedURLException {
+         String id = library.libName;
+         libraries.put(id, new LazyLibrary(library, packages.get(library), resolver));
+         return new URL(PROTOCOL, "", -1, "/" + id + "/", this);
+      }
+
+      @Override
+      protected URLConnection openConnection(URL u) throws IOException {
+         String path = u.getPath();
+         int slash = path.indexOf('/', 1);
+         if (!path.startsWith("/") || slash == -1) throw new MalformedURLException(u.toString());
+         LazyLibrary library = libraries.get(path.substring(1, slash));
+         if (library == null) throw new FileNotFoundException(u.toString());
+         String entryName = NestedJarURLStreamHandler.decodePath(path.substring(slash + 1));
+         if (!library.isResolved() && !library.contains(entryName)) throw new FileNotFoundException(u.toString());
+         return new URL(library.getBase(), path.substring(slash + 1)).openConnection();
+      }
+
+      static class LazyLibrary {
+         final KotlinLibrary library;
+         final String[] packages;
+         final Callable<URL> resolver;
+         URL base;
+         IOException failure;
+
+         LazyLibrary(KotlinLibrary library, String[] packages, Callable<URL> resolver) {
+            this.library = library;
+            this.packages = packages;
+            this.resolver = resolver;
+         }
+
+         boolean contains(String entryName) {
+            for (String name : packages) {
+               if (entryName.startsWith(name)) return true;
+            }
+            return false;
+         }
+
+         synchronized boolean isResolved() {
+            return base != null;
+         }
+
+         synchronized URL getBase() throws IOException {
+            if (base != null) return base;
+            // don't retry download for each class
+            if (failure != null) throw failure;
+            log("resolving " + library + " at the first use");
+            try {
+               URL url = resolver.call();
+               base = url.getPath().endsWith("/") ? url : new URL("jar:" + url + "!/");
+               return base;
+            } catch (Exception e) {
+               failure = new FileNotFoundException("failed to resolve " + library + ": " + e);
+               failure.initCause(e);
+               throw failure;
+            }
+         }
+
+         public static void staticInit() {
+         }
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * Reads {@code kotlin.KotlinVersion.CURRENT} from class files without defining any classes.
+    * This finds {@code new KotlinVersion(major, minor, patch)} in {@code <clinit>} of {@code kotlin.KotlinVersion}
+    * or in the method {@code <clinit>} calls to get {@code CURRENT} like {@code KotlinVersionCurrentValue.get()}.
+    */
+   static class KotlinVersionClassReader {
+      static final String kotlinVersionInternalName = q("<kotlin/KotlinVersion>");
+      static final String kotlinVersionDescriptor = "L" + kotlinVersionInternalName + ";";
+      static final int MAX_DEPTH = 3;
+
+      static final int CONSTANT_Utf8 = 1;
+      static final int CONSTANT_Integer = 3;
+      static final int CONSTANT_Float = 4;
+      static final int CONSTANT_Long = 5;
+      static final int CONSTANT_Double = 6;
+      static final int CONSTANT_Class = 7;
+      static final int CONSTANT_String = 8;
+      static final int CONSTANT_Fieldref = 9;
+      static final int CONSTANT_Methodref = 10;
+      static final int CONSTANT_InterfaceMethodref = 11;
+      static final int CONSTANT_NameAndType = 12;
+      static final int CONSTANT_MethodHandle = 15;
+      static final int CONSTANT_MethodType = 16;
+      static final int CONSTANT_Dynamic = 17;
+      static final int CONSTANT_InvokeDynamic = 18;
+      static final int CONSTANT_Module = 19;
+      static final int CONSTANT_Package = 20;
+
+      /**
+       * @return the version of kotlin. null if not found or the class is not understandable.
+       */
+      static String readCurrentVersion(JarEntrySource source) throws IOException {
+         try {
+            return readVersionIn(source, kotlinVersionInternalName, "<clinit>", "()V", 0);
+         } catch (IndexOutOfBoundsException e) {
+            return null;
+         } catch (IllegalArgumentException e) {
+            return null;
+         }
+      }
+
+      /**
+       * @return the {@code Implementation-Version} of kotlin-stdlib. null if the jar is not kotlin-stdlib.
+       */
+      static String readManifestVersion(Manifest manifest) {
+         if (manifest == null) return null;
+         Attributes attributes = manifest.getMainAttributes();
+         String title = attributes.getValue("Implementation-Title");
+         String version = attributes.getValue("Implementation-Version");
+         if (title == null || version == null) return null;
+         if (!title.trim().equals(KotlinLibrary.KotlinStdlib.libName)) return null;
+         // like '1.4.30-release-302'
+         Matcher matcher = leadingVersion.matcher(version.trim());
+         if (!matcher.find()) return null;
+         return matcher.group();
+      }
+
+      static String readVersionIn(JarEntrySource source, String className, String methodName, String methodDesc, int depth)
+              throws IOException {
+         if (depth >= MAX_DEPTH) return null;
+         byte[] bytes = source.readEntry(className + ".class");
+         if (bytes == null) return null;
+         ClassFile classFile = new ClassFile(bytes);
+         byte[] code = classFile.findCode(methodName, methodDesc);
+         if (code == null) return null;
+
+         int[] ints = new int[3];
+         int intCount = 0;
+         boolean versionConstructed = false;
+
+         int pc = 0;
+         while (pc < code.length) {
+            int opcode = code[pc] & 0xFF;
+            int length = instructionLength(code, pc);
+            if (length <= 0) return null;
+
+            Integer pushed = pushedInt(classFile, code, pc, opcode);
+            if (pushed != null) {
+               if (intCount == 3) {
+                  ints[0] = ints[1];
+                  ints[1] = ints[2];
+                  intCount = 2;
+               }
+               ints[intCount++] = pushed;
+            } else if (opcode == 0xb7) { // invokespecial
+               String[] ref = classFile.memberRef(u2(code, pc + 1));
+               versionConstructed = intCount == 3
+                       && ref[0].equals(kotlinVersionInternalName) && ref[1].equals("<init>") && ref[2].equals("(III)V");
+               if (versionConstructed && !methodName.equals("<clinit>"))
+                  return ints[0] + "." + ints[1] + "." + ints[2];
+               intCount = 0;
+            } else if (opcode == 0xb3) { // putstatic
+               String[] ref = classFile.memberRef(u2(code, pc + 1));
+               if (versionConstructed && ref[1].equals("CURRENT"))
+                  return ints[0] + "." + ints[1] + "." + ints[2];
+               versionConstructed = false;
+               intCount = 0;
+            } else if (opcode == 0xb8) { // invokestatic
+               String[] ref = classFile.memberRef(u2(code, pc + 1));
+               int next = pc + length;
+               if (ref[2].equals("()" + kotlinVersionDescriptor) && next < code.length && (code[next] & 0xFF) == 0xb3
+                       && classFile.memberRef(u2(code, next + 1))[1].equals("CURRENT")) {
+                  return readVersionIn(source, ref[0], ref[1], ref[2], depth + 1);
+               }
+               versionConstructed = false;
+               intCount = 0;
+            } else if (opcode != 0xbb && opcode != 0x59) { // new, dup
+               versionConstructed = false;
+               intCount = 0;
+            }
+            pc += length;
+         }
+         return null;
+      }
+
+      static Integer pushedInt(ClassFile classFile, byte[] code, int pc, int opcode) {
+         if (opcode >= 0x02 && opcode <= 0x08) return opcode - 0x03; // iconst_m1 to iconst_5
+         if (opcode == 0x10) return (int) code[pc + 1]; // bipush
+         if (opcode == 0x11) return (int) (short) u2(code, pc + 1); // sipush
+         if (opcode == 0x12) return classFile.integerConstant(code[pc + 1] & 0xFF); // ldc
+         if (opcode == 0x13) return classFile.integerConstant(u2(code, pc + 1)); // ldc_w
+         return null;
+      }
+
+      /**
+       * @return the length of the instruction at {@code pc}. -1 for unknown instruction.
+       */
+      static int instructionLength(byte[] code, int pc) {
+         int opcode = code[pc] & 0xFF;
+         switch (opcode) {
+            case 0x10: // bipush
+            case 0x12: // ldc
+            case 0xa9: // ret
+            case 0xbc: // newarray
+               return 2;
+            case 0x11: // sipush
+            case 0x13: // ldc_w
+            case 0x14: // ldc2_w
+            case 0x84: // iinc
+            case 0xbb: // new
+            case 0xbd: // anewarray
+            case 0xc0: // checkcast
+            case 0xc1: // instanceof
+            case 0xc6: // ifnull
+            case 0xc7: // ifnonnull
+               return 3;
+            case 0xc5: // multianewarray
+               return 4;
+            case 0xb9: // invokeinterface
+            case 0xba: // invokedynamic
+            case 0xc8: // goto_w
+            case 0xc9: // jsr_w
+               return 5;
+            case 0xc4: // wide
+               return (code[pc + 1] & 0xFF) == 0x84 ? 6 : 4;
+            case 0xaa: { // tableswitch
+               int base = (pc + 4) & ~3;
+               int low = s4(code, base + 4);
+               int high = s4(code, base + 8);
+               return base - pc + 12 + (high - low + 1) * 4;
+            }
+            case 0xab: { // lookupswitch
+               int base = (pc + 4) & ~3;
+               int pairs = s4(code, base + 4);
+               return base - pc + 8 + pairs * 8;
+            }
+         }
+         if (opcode >= 0x15 && opcode <= 0x19) return 2; // xload
+         if (opcode >= 0x36 && opcode <= 0x3a) return 2; // xstore
+         if (opcode >= 0x99 && opcode <= 0xa8) return 3; // if* goto jsr
+         if (opcode >= 0xb2 && opcode <= 0xb8) return 3; // field access and invoke*
+         if (opcode > 0xc9) return -1;
+         return 1;
+      }
+
+      static int u2(byte[] bytes, int index) {
+         return (bytes[index] & 0xFF) << 8 | (bytes[index + 1] & 0xFF);
+      }
+
+      static int s4(byte[] bytes, int index) {
+         return (bytes[index] & 0xFF) << 24 | (bytes[index + 1] & 0xFF) << 16
+                 | (bytes[index + 2] & 0xFF) << 8 | (bytes[index + 3] & 0xFF);
+      }
+
+      /**
+       * The minimum class file parser for reading version.
+       */
+      static class ClassFile {
+         final byte[] bytes;
+         final int[] offsets;
+         final int[] tags;
+         final String[] utf8s;
+         final int methodsOffset;
+
+         ClassFile(byte[] bytes) throws IOException {
+            this.bytes = bytes;
+            if (s4(bytes, 0) != 0xCAFEBABE) throw new IllegalArgumentException("not a class file");
+            int count = u2(bytes, 8);
+            offsets = new int[count];
+            tags = new int[count];
+            utf8s = new String[count];
+            int offset = 10;
+            for (int i = 1; i < count; i++) {
+               int tag = bytes[offset] & 0xFF;
+               tags[i] = tag;
+               offsets[i] = offset + 1;
+               switch (tag) {
+                  case CONSTANT_Utf8: {
+                     int length = u2(bytes, offset + 1);
+                     utf8s[i] = new DataInputStream(new ByteArrayInputStream(bytes, offset + 1, length + 2)).readUTF();
+                     offset += 3 + length;
+                     break;
+                  }
+                  case CONSTANT_Integer:
+                  case CONSTANT_Float:
+                  case CONSTANT_Fieldref:
+                  case CONSTANT_Methodref:
+                  case CONSTANT_InterfaceMethodref:
+                  case CONSTANT_NameAndType:
+                  case CONSTANT_Dynamic:
+                  case CONSTANT_InvokeDynamic:
+                     offset += 5;
+                     break;
+                  case CONSTANT_Long:
+                  case CONSTANT_Double:
+                     offset += 9;
+                     i++;
+                     break;
+                  case CONSTANT_Class:
+                  case CONSTANT_String:
+                  case CONSTANT_MethodType:
+                  case CONSTANT_Module:
+                  case CONSTANT_Package:
+                     offset += 3;
+                     break;
+                  case CONSTANT_MethodHandle:
+                     offset += 4;
+                     break;
+                  default:
+                     throw new IllegalArgumentException("unknown constant tag: " + tag);
+               }
+            }
+            // access_flags, this_class, super_class
+            offset += 6;
+            int interfaces = u2(bytes, offset);
+            offset += 2 + interfaces * 2;
+            int fields = u2(bytes, offset);
+            offset += 2;
+            for (int i = 0; i < fields; i++) {
+               offset = skipMember(offset);
+            }
+            methodsOffset = offset;
+         }
+
+         int skipMember(int offset) {
+            int attributes = u2(bytes, offset + 6);
+            offset += 8;
+            for (int i = 0; i < attributes; i++) {
+               offset += 6 + s4(bytes, offset + 2);
+            }
+            return offset;
+         }
+
+         byte[] findCode(String name, String desc) {
+            int methods = u2(bytes, methodsOffset);
+            int offset = methodsOffset + 2;
+            for (int i = 0; i < methods; i++) {
+               if (name.equals(utf8s[u2(bytes, offset + 2)]) && desc.equals(utf8s[u2(bytes, offset + 4)])) {
+                  int attributes = u2(bytes, offset + 6);
+                  int attribute = offset + 8;
+                  for (int j = 0; j < attributes; j++) {
+                     int length = s4(bytes, attribute + 2);
+                     if ("Code".equals(utf8s[u2(bytes, attribute)])) {
+                        int codeLength = s4(bytes, attribute + 10);
+                        return Arrays.copyOfRange(bytes, attribute + 14, attribute + 14 + codeLength);
+                     }
+                     attribute += 6 + length;
+                  }
+                  return null;
+               }
+               offset = skipMember(offset);
+            }
+            return null;
+         }
+
+         Integer integerConstant(int index) {
+            if (index <= 0 || index >= tags.length || tags[index] != CONSTANT_Integer) return null;
+            return s4(bytes, offsets[index]);
+         }
+
+         /**
+          * @return owner internal name, name, and descriptor of the member reference.
+          */
+         String[] memberRef(int index) {
+            int tag = tags[index];
+            if (tag != CONSTANT_Fieldref && tag != CONSTANT_Methodref && tag != CONSTANT_InterfaceMethodref)
+               throw new IllegalArgumentException("not a member reference");
+            int classIndex = u2(bytes, offsets[index]);
+            int nameAndType = u2(bytes, offsets[index] + 2);
+            return new String[]{
+                    utf8s[u2(bytes, offsets[classIndex])],
+                    utf8s[u2(bytes, offsets[nameAndType])],
+                    utf8s[u2(bytes, offsets[nameAndType] + 2)],
+            };
+         }
+
+         public static void staticInit() {
+         }
+      }
+
+      static final Pattern leadingVersion = Pattern.compile("^\\d+\\.\\d+(\\.\\d+)?");
+
+      public static void staticInit() {
+      }
+   }
+
+   static class SingleJarClassLoader extends ClassLoader {
+      JarEntrySource jar;
+
+      @Override
+      protected Class<?> findClass(String name) throws ClassNotFoundException {
+         JarEntrySource jar = this.jar;
+         if (jar == null) throw new ClassNotFoundException(name);
+         byte[] bytes;
+         try {
+            bytes = jar.readEntry(name.replace('.', '/') + ".class");
+         } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+         }
+         if (bytes == null) return super.findClass(name);
+
+         return defineClass(name, bytes, 0, bytes.length);
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   static final String resolverVersionPropName = q("<com.anatawa12.minecraft-kotlin-resolver.resolver-version>");
+   static final String resolverNamePropName = q("<com.anatawa12.minecraft-kotlin-resolver.resolver-name>");
+   static final String lazyLibrariesPropName = q("<com.anatawa12.minecraft-kotlin-resolver.lazy-libraries>");
+   static final String lockfilePropName = q("<com.anatawa12.minecraft-kotlin-resolver.lockfile>");
+   static final String mergeLibrariesPropName = q("<com.anatawa12.minecraft-kotlin-resolver.merge-libraries>");
+   static final String nestedJarsPropName = q("<com.anatawa12.minecraft-kotlin-resolver.nested-jars>");
+   static final String concurrentLookupPropName = q("<com.anatawa12.minecraft-kotlin-resolver.concurrent-lookup>");
+   static final String warmUpPropName = q("<com.anatawa12.minecraft-kotlin-resolver.warm-up>");
+   static final String warmUpClassesPropName = q("<com.anatawa12.minecraft-kotlin-resolver.warm-up-classes>");
+   static final String cacheMaxAgePropName = q("<com.anatawa12.minecraft-kotlin-resolver.cache-max-age>");
+   static final String cacheMaxSizePropName = q("<com.anatawa12.minecraft-kotlin-resolver.cache-max-size>");
+   static final String cleanTempDirPropName = q("<com.anatawa12.minecraft-kotlin-resolver.clean-temp-dir>");
+   static final String metricsSummaryPropName = q("<com.anatawa12.minecraft-kotlin-resolver.metrics-summary>");
+   static final String downloadThreadsPropName = q("<com.anatawa12.minecraft-kotlin-resolver.download-threads>");
+   static final String parallelVerifyPropName = q("<com.anatawa12.minecraft-kotlin-resolver.parallel-verify>");
+   static final String repositoriesPropName = q("<com.anatawa12.minecraft-kotlin-resolver.repositories>");
+   static final String requireChecksumPropName = q("<com.anatawa12.minecraft-kotlin-resolver.require-checksum>");
+   static final String scanIndexPropName = q("<com.anatawa12.minecraft-kotlin-resolver.scan-index>");
+   static final String scanThreadsPropName = q("<com.anatawa12.minecraft-kotlin-resolver.scan-threads>");
+   static final int MANIFEST_VERSION = 2;
+   /**
+    * The resolver with the greatest version is used if two or more mods have this resolver.
+    * Raise this with {@link #MANIFEST_VERSION} so older resolvers don't reject newer manifests.
+    */
+   static final double RESOLVER_VERSION = 2.0;
+
+   static MessageDigest getSha1() {
+      try {
+         return MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   static MessageDigest getSha256() {
+      try {
+         return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   static final char[] hexElements = new char[] {
+           '0', '1', '2', '3', '4', '5', '6', '7',
+           '8', '9', 'a', 'b', 'c', 'd', 'e', 'f',
+   };
+
+   static byte[] toHexBytes(byte[] digest) {
+      byte[] chars = new byte[digest.length * 2];
+      for (int i = 0; i < digest.length; i++) {
+         chars[i * 2] = (byte) hexElements[digest[i] >>> 4 & 0x0F];
+         chars[i * 2 + 1] = (byte) hexElements[digest[i] & 0xF];
+      }
+      return chars;
+   }
+
+   static final int COPY_BUFFER_SIZE = 64 << 10;
+   static final int MAX_POOLED_BUFFERS = 8;
+   static final Queue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+   /**
+    * Copies the stream to all outputs. Pass {@link DigesterOutputStream} to hash in the same pass.
+    * This is safe to be called from multiple threads.
+    */
+   static void copy(InputStream in, OutputStream... outs) throws IOException {
+      // buffer per call: copy is called from worker threads
+      byte[] buf = new byte[COPY_BUFFER_SIZE];
+      int cnt;
+      while ((cnt = in.read(buf)) != -1) {
+         for (OutputStream out : outs)
+            out.write(buf, 0, cnt);
+      }
+   }
+
+   /**
+    * Hashes the file with a pooled direct buffer.
+    */
+   static void digest(File file, MessageDigest digest) throws IOException {
+      long start = System.nanoTime();
+      FileInputStream in = null;
+      ByteBuffer buffer = takeDirectBuffer();
+      try {
+         in = new FileInputStream(file);
+         FileChannel channel = in.getChannel();
+         while (channel.read(buffer) != -1) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+         }
+      } finally {
+         releaseDirectBuffer(buffer);
+         if (in != null) in.close();
+         ResolveMetrics.hashNanos.addAndGet(System.nanoTime() - start);
+         ResolveMetrics.hashCount.incrementAndGet();
+      }
+   }
+
+   static ByteBuffer takeDirectBuffer() {
+      ByteBuffer buffer = directBuffers.poll();
+      if (buffer == null) return ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+      buffer.clear();
+      return buffer;
+   }
+
+   static void releaseDirectBuffer(ByteBuffer buffer) {
+      // the size of queue is not exact but it's enough to bound the pool
+      if (directBuffers.size() < MAX_POOLED_BUFFERS)
+         directBuffers.offer(buffer);
+   }
+
+   static final String cacheBaseDir = q("<.cache/anatawa12-mckt-resolver/>");
+
+   static File getCacheBase() {
+      return new File(System.getProperty("user.home"), cacheBaseDir);
+   }
+
+   /**
+    * Creates the temporary file next to {@code file} to be renamed to it.
+    * The name is unique so processes sharing the cache never write to the same temporary file.
+    */
+   static File tempFileFor(File file) throws IOException {
+      return File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+   }
+
+   /**
+    * Moves {@code from} to {@code to}. {@code to} will be replaced if exists.
+    */
+   static void replaceFile(File from, File to) throws IOException {
+      if (from.renameTo(to)) return;
+      // on windows, renameTo fails if the destination exists.
+      to.delete();
+      if (!from.renameTo(to))
+         throw new IOException("can't rename " + from + " to " + to);
+   }
+
+   /** Returns {@code files}, or an empty array if listing the directory failed. */
+   static File[] orEmpty(File[] files) {
+      return files == null ? new File[0] : files;
+   }
+
+   /**
+    * Reads small text file like hash or stamp.
+    *
+    * @return the trimmed contents of the file. null if the file is not readable.
+    */
+   static String readTextFile(File file) {
+      if (!file.isFile() || file.length() > MAX_TEXT_FILE_SIZE) return null;
+      InputStream in = null;
+      try {
+         in = new FileInputStream(file);
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         copy(in, out);
+         return out.toString("UTF-8").trim();
+      } catch (IOException e) {
+         return null;
+      } finally {
+         closeQuietly(in);
+      }
+   }
+
+   /**
+    * Writes the text to a temporary file then renames to the file
+    * so readers never see partially written file.
+    */
+   static void writeTextFile(File file, String text) throws IOException {
+      file.getParentFile().mkdirs();
+      File tmp = tempFileFor(file);
+      OutputStream out = null;
+      try {
+         try {
+            out = new FileOutputStream(tmp);
+            out.write(text.getBytes("UTF-8"));
+         } finally {
+            if (out != null) out.close();
+         }
+         replaceFile(tmp, file);
+      } finally {
+         tmp.delete();
+      }
+   }
+
+   static final int MAX_TEXT_FILE_SIZE = 1 << 16;
+
+   static Properties loadProperties(File file) {
+      Properties properties = new Properties();
+      if (!file.isFile()) return properties;
+      InputStream in = null;
+      try {
+         in = new BufferedInputStream(new FileInputStream(file));
+         properties.load(in);
+      } catch (IOException e) {
+         log("failed to load " + file + ": " + e);
+      } catch (IllegalArgumentException e) {
+         log("failed to load " + file + ": " + e);
+      } finally {
+         closeQuietly(in);
+      }
+      return properties;
+   }
+
+   static void saveProperties(File file, Properties properties, String comments) throws IOException {
+      file.getParentFile().mkdirs();
+      File tmp = tempFileFor(file);
+      OutputStream out = null;
+      try {
+         try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            properties.store(out, comments);
+         } finally {
+            if (out != null) out.close();
+         }
+         replaceFile(tmp, file);
+      } finally {
+         tmp.delete();
+      }
+   }
+
+   /**
+    * Opens the URL without {@link URLConnection#setUseCaches(boolean) caches}.
+    * For jar URLs, the jar file will be closed when the stream is closed.
+    */
+   static InputStream openStreamWithoutCaches(URL url) throws IOException {
+      URLConnection connection = url.openConnection();
+      connection.setUseCaches(false);
+      return connection.getInputStream();
+   }
+
+   static void closeQuietly(Closeable closeable) {
+      if (closeable == null) return;
+      try {
+         closeable.close();
+      } catch (IOException ignored) {
+      }
+   }
+
+   static ExecutorService newWorkerPool(String name, int threads) {
+      return Executors.newFixedThreadPool(threads, new WorkerThreadFactory(name));
+   }
+
+   static <T> T getFuture(Future<T> future) {
+      try {
+         return future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException(e.getMessage(), e);
+      } catch (ExecutionException e) {
+         Throwable throwable = e.getCause();
+         if (throwable instanceof RuntimeException)
+            throw (RuntimeException) throwable;
+         if (throwable instanceof Error)
+            throw (Error) throwable;
+         throw new IllegalStateException(throwable.getMessage(), throwable);
+      }
+   }
+
+   static class WorkerThreadFactory implements ThreadFactory {
+      final String name;
+      final AtomicInteger count = new AtomicInteger();
+
+      WorkerThreadFactory(String name) {
+         this.name = name;
+      }
+
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread thread = new Thread(r, name + '-' + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   static String sha1Of(File file) throws IOException {
+      MessageDigest sha1 = getSha1();
+      digest(file, sha1);
+      return new String(toHexBytes(sha1.digest()), "US-ASCII");
+   }
+
+   /**
+    * @return the short hash of the canonical path of the directory to name files for the directory in the cache.
+    */
+   static String directoryKey(File dir) {
+      String path;
+      try {
+         path = dir.getCanonicalPath();
+      } catch (IOException e) {
+         path = dir.getAbsolutePath();
+      }
+      try {
+         MessageDigest sha1 = getSha1();
+         sha1.update(path.getBytes("UTF-8"));
+         return new String(toHexBytes(sha1.digest()), 0, 16, "US-ASCII");
+      } catch (IOException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   static String q(String s) {
+      return s.substring(1, s.length() - 1);
+   }
+
+   interface KotlinCacheFinder {
+      File find(KotlinLibrary library, String kotlinVersion);
+   }
+
+   /**
+    * The result of resolving saved in {@code resolve-<hash of mods directory>.lock} so game instances with
+    * different mods directories don't overwrite each other. If the mods and the configuration are not changed,
+    * the class path is restored from the lockfile without scanning mods, finding caches nor downloading.
+    * The fingerprint is SHA-1 of the paths, sizes and last modified times of the mods, and the configuration.
+    * Each jar in the class path is recorded with its size, last modified time and SHA-1,
+    * and the lockfile is not used if the size or last modified time is changed.
+    */
+   static class ResolveLock {
+      static final String filePrefix = q("<resolve->");
+      static final String fileSuffix = q("<.lock>");
+      static final String KIND_FILE = "file";
+      static final String KIND_NESTED = "nested";
+      static final String KIND_LAZY = "lazy";
 
+      final File file;
+      final String fingerprint;
+      String version;
+
+      ResolveLock(File file, String fingerprint) {
+         this.file = file;
+         this.fingerprint = fingerprint;
+      }
+
+      static ResolveLock of(File file, List<File> mods) {
          try {
-            InputStream inputStream = null;
-            try {
-               inputStream = new BufferedInputStream(jar.getInputStream(entry));
-               copy(inputStream, stream);
-            } finally {
-               if (inputStream != null)
-                  inputStream.close();
+            return new ResolveLock(file, fingerprint(mods));
+         } catch (IOException e) {
+            log("can't compute fingerprint of mods: " + e);
+            return null;
+         }
+      }
+
+      static String fingerprint(List<File> mods) throws IOException {
+         List<File> sorted = new ArrayList<File>(mods);
+         Collections.sort(sorted);
+         MessageDigest sha1 = getSha1();
+         StringBuilder builder = new StringBuilder();
+         builder.append(RESOLVER_VERSION).append('\n');
+         // the properties change the class path.
+         // this is not a static field because the names are initialized after nested classes
+         String[] configPropNames = {
+                 nestedJarsPropName, mergeLibrariesPropName, lazyLibrariesPropName, repositoriesPropName,
+         };
+         for (String name : configPropNames) {
+            builder.append(name).append('=').append(System.getProperty(name)).append('\n');
+         }
+         for (File mod : sorted) {
+            builder.append(mod.getAbsolutePath()).append('\t').append(mod.length())
+                    .append('\t').append(mod.lastModified()).append('\n');
+         }
+         sha1.update(builder.toString().getBytes("UTF-8"));
+         return new String(toHexBytes(sha1.digest()), "US-ASCII");
+      }
+
+      static File getFile(File modsDir) {
+         return new File(getCacheBase(), filePrefix + directoryKey(modsDir) + fileSuffix);
+      }
+
+      /**
+       * Restores the version, the libraries and the class path to the resolver.
+       *
+       * @return the class path. null if the lockfile is not usable.
+       */
+      List<URL> restore(Resolver resolver) {
+         Properties properties = loadProperties(file);
+         if (!fingerprint.equals(properties.getProperty("fingerprint"))) return null;
+         String version = properties.getProperty("version");
+         int[] parsedVersion = version == null ? null : KotlinVersion.parse(version);
+         if (parsedVersion == null) return null;
+
+         EnumSet<KotlinLibrary> libs = EnumSet.noneOf(KotlinLibrary.class);
+         String libraries = properties.getProperty("libraries", "");
+         for (String name : libraries.split(",")) {
+            if (name.isEmpty()) continue;
+            KotlinLibrary library = KotlinLibrary.byName.get(name);
+            if (library == null) return null;
+            libs.add(library);
+         }
+
+         List<URL> classPath = new ArrayList<URL>();
+         try {
+            int entries = Integer.parseInt(properties.getProperty("entries", "-1"));
+            if (entries < 0) return null;
+            for (int i = 0; i < entries; i++) {
+               URL url = restoreEntry(resolver, properties, "entry." + i, version);
+               if (url == null) {
+                  log("lockfile is outdated: entry " + i + " is changed");
+                  return null;
+               }
+               classPath.add(url);
             }
+         } catch (NumberFormatException e) {
+            return null;
          } catch (IOException e) {
-            throw new ClassNotFoundException(name, e);
+            log("can't restore class path from lockfile: " + e);
+            return null;
+         }
+
+         this.version = version;
+         resolver.version = parsedVersion;
+         resolver.libs.addAll(libs);
+         return classPath;
+      }
+
+      static URL restoreEntry(Resolver resolver, Properties properties, String prefix, String version) throws IOException {
+         String kind = properties.getProperty(prefix);
+         String url = properties.getProperty(prefix + ".url");
+         if (KIND_FILE.equals(kind)) {
+            File file = url == null ? null : Resolver.toFile(new URL(url));
+            if (file == null || !file.isFile()) return null;
+            if (!String.valueOf(file.length()).equals(properties.getProperty(prefix + ".length"))) return null;
+            if (!String.valueOf(file.lastModified()).equals(properties.getProperty(prefix + ".lastModified"))) return null;
+            if (!CacheLock.markUsed(file)) return null;
+            return file.toURI().toURL();
+         }
+
+         KotlinLibrary library = KotlinLibrary.byName.get(properties.getProperty(prefix + ".library"));
+         if (library == null) return null;
+         if (KIND_NESTED.equals(kind)) {
+            if (url == null) return null;
+            // the outer jar is a mod so it's checked by the fingerprint
+            return NestedJarURLStreamHandler.INSTANCE.register(library, new URL(url));
+         }
+         if (KIND_LAZY.equals(kind)) {
+            if (resolver.cacheLookup == null) resolver.cacheLookup = new CacheLookup(resolver.finders);
+            return resolver.registerDeferred(library, url == null ? null : new URL(url), version);
+         }
+         return null;
+      }
+
+      /**
+       * @return true if the lockfile is written.
+       */
+      boolean save(Resolver resolver, String version, List<URL> classPath) {
+         Properties properties = new Properties();
+         properties.setProperty("fingerprint", fingerprint);
+         properties.setProperty("version", version);
+         StringBuilder libraries = new StringBuilder();
+         for (KotlinLibrary library : resolver.libs) {
+            if (libraries.length() != 0) libraries.append(',');
+            libraries.append(library.libName);
+         }
+         properties.setProperty("libraries", libraries.toString());
+         properties.setProperty("entries", String.valueOf(classPath.size()));
+         try {
+            for (int i = 0; i < classPath.size(); i++) {
+               if (!saveEntry(resolver, properties, "entry." + i, classPath.get(i))) {
+                  log("lockfile is not written: " + classPath.get(i) + " can't be locked");
+                  return false;
+               }
+            }
+            saveProperties(file, properties, "class path resolved by MCKTResolver");
+            return true;
+         } catch (IOException e) {
+            log("failed to write lockfile: " + e);
+            return false;
+         }
+      }
+
+      static boolean saveEntry(Resolver resolver, Properties properties, String prefix, URL url) throws IOException {
+         File file = Resolver.toFile(url);
+         if (file != null) {
+            properties.setProperty(prefix, KIND_FILE);
+            properties.setProperty(prefix + ".url", url.toString());
+            properties.setProperty(prefix + ".length", String.valueOf(file.length()));
+            properties.setProperty(prefix + ".lastModified", String.valueOf(file.lastModified()));
+            properties.setProperty(prefix + ".sha1", MergedRuntimeJar.hashOf(file));
+            return true;
          }
 
-         return defineClass(name, stream.toByteArray(), 0, stream.size());
+         Map<KotlinLibrary, URL> sources;
+         String kind;
+         if (NestedJarURLStreamHandler.PROTOCOL.equals(url.getProtocol())) {
+            sources = resolver.nestedSources;
+            kind = KIND_NESTED;
+         } else if (LazyLibraryURLStreamHandler.PROTOCOL.equals(url.getProtocol())) {
+            sources = resolver.deferredSources;
+            kind = KIND_LAZY;
+         } else {
+            return false;
+         }
+         // the path is /<library name>/
+         String path = url.getPath();
+         KotlinLibrary library = KotlinLibrary.byName.get(path.substring(1, path.length() - 1));
+         if (library == null || !sources.containsKey(library)) return false;
+         properties.setProperty(prefix, kind);
+         properties.setProperty(prefix + ".library", library.libName);
+         URL source = sources.get(library);
+         if (source != null) properties.setProperty(prefix + ".url", source.toString());
+         return true;
       }
 
       public static void staticInit() {
       }
    }
 
-   static final String resolverVersionPropName = q("<com.anatawa12.minecraft-kotlin-resolver.resolver-version>");
-   static final String resolverNamePropName = q("<com.anatawa12.minecraft-kotlin-resolver.resolver-name>");
-   static final int MANIFEST_VERSION = 1;
-   static final double RESOLVER_VERSION = 1.0;
+   /**
+    * Records time spent in each phase of resolving. The report is written to {@code resolve-metrics.json}
+    * in the cache directory like:
+    * <pre>{@code
+    * {"version":"1.4.30","libraries":["kotlin-stdlib"],
+    *  "phases":{"list-mods":{"nanos":1200,"count":1},...},"counters":{"mods":12,...}}
+    * }</pre>
+    * Phases can be nested like {@code detect-version} in {@code scan-mod},
+    * and phases run on worker threads sum the time of all threads.
+    */
+   static class ResolveMetrics {
+      // hashing is done in static helpers so it's recorded globally
+      static final AtomicLong hashNanos = new AtomicLong();
+      static final AtomicLong hashCount = new AtomicLong();
 
-   static MessageDigest getSha1() {
-      try {
-         return MessageDigest.getInstance("SHA-1");
-      } catch (NoSuchAlgorithmException e) {
-         throw new RuntimeException(e);
+      static final String reportFileName = q("<resolve-metrics.json>");
+
+      final long startNanos = System.nanoTime();
+      final long hashNanosAtStart = hashNanos.get();
+      final long hashCountAtStart = hashCount.get();
+      // name to {nanos, count}
+      final Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+      final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+
+      void add(String phase, long startNanos) {
+         add(phase, System.nanoTime() - startNanos, 1);
       }
-   }
 
-   static final char[] hexElements = new char[] {
-           '0', '1', '2', '3', '4', '5', '6', '7',
-           '8', '9', 'a', 'b', 'c', 'd', 'e', 'f',
-   };
+      synchronized void add(String phase, long nanos, long count) {
+         long[] values = phases.get(phase);
+         if (values == null) phases.put(phase, values = new long[2]);
+         values[0] += nanos;
+         values[1] += count;
+      }
 
-   static byte[] toHexBytes(byte[] digest) {
-      byte[] chars = new byte[digest.length * 2];
-      for (int i = 0; i < digest.length; i++) {
-         chars[i * 2] = (byte) hexElements[digest[i] >>> 2 & 0x0F];
-         chars[i * 2 + 1] = (byte) hexElements[digest[i] & 0xF];
+      synchronized void put(String counter, long value) {
+         counters.put(counter, value);
       }
-      return chars;
-   }
 
-   static final byte[] buf = new byte[1 << 10];
-   static void copy(InputStream in, OutputStream... outs) throws IOException {
-      int cnt;
-      while ((cnt = in.read(buf)) != -1) {
-         for (OutputStream out : outs)
-            out.write(buf, 0, cnt);
+      synchronized void increment(String counter, long delta) {
+         Long value = counters.get(counter);
+         counters.put(counter, value == null ? delta : value + delta);
       }
-   }
 
-   static String q(String s) {
-      return s.substring(1, s.length() - 1);
+      synchronized long getNanos(String phase) {
+         long[] values = phases.get(phase);
+         return values == null ? 0 : values[0];
+      }
+
+      /**
+       * Records the total time and the hashing, then writes the report.
+       */
+      void finish(String version, Collection<KotlinLibrary> libraries) {
+         add("hash", hashNanos.get() - hashNanosAtStart, hashCount.get() - hashCountAtStart);
+         add("total", startNanos);
+         synchronized (this) {
+            long downloadNanos = getNanos("download");
+            Long downloadBytes = counters.get("download-bytes");
+            if (downloadBytes != null && downloadNanos > 0)
+               counters.put("download-bytes-per-second", downloadBytes * 1000000000L / downloadNanos);
+         }
+
+         String json = toJson(version, libraries);
+         try {
+            writeTextFile(new File(getCacheBase(), reportFileName), json);
+         } catch (IOException e) {
+            log("failed to write resolve metrics: " + e);
+         }
+         if (getBoolean(metricsSummaryPropName, false))
+            log(summary());
+      }
+
+      synchronized String toJson(String version, Collection<KotlinLibrary> libraries) {
+         StringBuilder builder = new StringBuilder();
+         builder.append("{\"version\":").append(quote(version));
+         builder.append(",\"libraries\":[");
+         boolean first = true;
+         for (KotlinLibrary library : libraries) {
+            if (!first) builder.append(',');
+            first = false;
+            builder.append(quote(library.libName));
+         }
+         builder.append("],\"phases\":{");
+         first = true;
+         for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+            if (!first) builder.append(',');
+            first = false;
+            builder.append(quote(entry.getKey())).append(":{\"nanos\":").append(entry.getValue()[0])
+                    .append(",\"count\":").append(entry.getValue()[1]).append('}');
+         }
+         builder.append("},\"counters\":{");
+         first = true;
+         for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            if (!first) builder.append(',');
+            first = false;
+            builder.append(quote(entry.getKey())).append(':').append(entry.getValue());
+         }
+         builder.append("}}\n");
+         return builder.toString();
+      }
+
+      synchronized String summary() {
+         StringBuilder builder = new StringBuilder("resolve metrics:");
+         for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+            builder.append(' ').append(entry.getKey()).append('=').append(entry.getValue()[0] / 1000000).append("ms");
+         }
+         return builder.toString();
+      }
+
+      static String quote(String value) {
+         StringBuilder builder = new StringBuilder(value.length() + 2);
+         builder.append('"');
+         for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') builder.append('\\').append(c);
+            else if (c < 0x20) builder.append(String.format("\\u%04x", (int) c));
+            else builder.append(c);
+         }
+         return builder.append('"').toString();
+      }
+
+      public static void staticInit() {
+      }
    }
 
-   interface KotlinCacheFinder {
-      File find(KotlinLibrary library, String kotlinVersion);
+   /**
+    * Queries the chain of {@link KotlinCacheFinder}s. Earlier finders have higher priority.
+    * The time spent in each finder is recorded so slow caches can be found from the log.
+    */
+   static class CacheLookup {
+      final KotlinCacheFinder[] finders;
+      final AtomicLongArray nanos;
+      final AtomicIntegerArray lookups;
+      final AtomicIntegerArray hits;
+
+      CacheLookup(KotlinCacheFinder[] finders) {
+         this.finders = finders;
+         this.nanos = new AtomicLongArray(finders.length);
+         this.lookups = new AtomicIntegerArray(finders.length);
+         this.hits = new AtomicIntegerArray(finders.length);
+      }
+
+      EnumMap<KotlinLibrary, File> findSerially(Collection<KotlinLibrary> libraries, String version) {
+         EnumMap<KotlinLibrary, File> found = new EnumMap<KotlinLibrary, File>(KotlinLibrary.class);
+         for (KotlinLibrary library : libraries) {
+            for (int i = 0; i < finders.length; i++) {
+               File file = find(i, library, version);
+               if (file != null) {
+                  hit(i, library);
+                  found.put(library, file);
+                  break;
+               }
+            }
+         }
+         return found;
+      }
+
+      /**
+       * Queries all finders for all libraries at the same time.
+       * The results are taken in priority order so a hit of lower priority finder never wins,
+       * and lookups of lower priority finders are cancelled once a higher priority finder hits.
+       */
+      EnumMap<KotlinLibrary, File> findConcurrently(Collection<KotlinLibrary> libraries, final String version) {
+         EnumMap<KotlinLibrary, File> found = new EnumMap<KotlinLibrary, File>(KotlinLibrary.class);
+         if (libraries.isEmpty()) return found;
+         ExecutorService executor = newWorkerPool("MCKT-Resolver-Lookup", libraries.size() * finders.length);
+         try {
+            EnumMap<KotlinLibrary, List<Future<File>>> futures = new EnumMap<KotlinLibrary, List<Future<File>>>(KotlinLibrary.class);
+            for (final KotlinLibrary library : libraries) {
+               List<Future<File>> perFinder = new ArrayList<Future<File>>(finders.length);
+               for (int i = 0; i < finders.length; i++) {
+                  final int index = i;
+                  perFinder.add(executor.submit(new Callable<File>() {
+                     @Override
+                     public File call() {
+                        return find(index, library, version);
+                     }
+                  }));
+               }
+               futures.put(library, perFinder);
+            }
+
+            for (Map.Entry<KotlinLibrary, List<Future<File>>> entry : futures.entrySet()) {
+               List<Future<File>> perFinder = entry.getValue();
+               for (int i = 0; i < perFinder.size(); i++) {
+                  File file = getFuture(perFinder.get(i));
+                  if (file != null) {
+                     hit(i, entry.getKey());
+                     found.put(entry.getKey(), file);
+                     for (int j = i + 1; j < perFinder.size(); j++) {
+                        perFinder.get(j).cancel(true);
+                     }
+                     break;
+                  }
+               }
+            }
+         } finally {
+            executor.shutdownNow();
+         }
+         return found;
+      }
+
+      File find(int index, KotlinLibrary library, String version) {
+         long start = System.nanoTime();
+         try {
+            return finders[index].find(library, version);
+         } finally {
+            nanos.addAndGet(index, System.nanoTime() - start);
+            lookups.incrementAndGet(index);
+         }
+      }
+
+      void hit(int index, KotlinLibrary library) {
+         hits.incrementAndGet(index);
+         log("cache found for " + library + " with " + finders[index].getClass().getSimpleName());
+      }
+
+      /**
+       * Returns total nanoseconds spent in the finder. Cancelled lookups count the time until they're stopped.
+       */
+      long getNanos(int index) {
+         return nanos.get(index);
+      }
+
+      void addTo(ResolveMetrics metrics) {
+         for (int i = 0; i < finders.length; i++) {
+            metrics.add("cache-lookup." + finders[i].getClass().getSimpleName(), nanos.get(i), lookups.get(i));
+         }
+      }
+
+      void logLatencies() {
+         for (int i = 0; i < finders.length; i++) {
+            log(finders[i].getClass().getSimpleName() + ": " + lookups.get(i) + " lookups, "
+                    + hits.get(i) + " hits in " + (nanos.get(i) / 1000000) + " ms");
+         }
+      }
+
+      public static void staticInit() {
+      }
    }
 
+   /**
+    * The finder for gradle cache. {@code <group>/<artifact>/<version>/<hash>/<artifact>-<version>.jar}
+    * of all kotlin libraries are listed at the first lookup.
+    */
    static class GradleKotlinCacheFinder implements KotlinCacheFinder {
+      Map<String, File> index;
+
       @Override
-      public File find(KotlinLibrary library, String kotlinVersion) {
-         File file = new File(System.getProperty("user.home"), cacheDir + library.dottedArchitectPath(kotlinVersion));
-         File[] files = file.listFiles();
-         if (files == null) return null;
-         for (File listFile : files) {
-            File jarFile = new File(listFile, library.architectName + '-' + kotlinVersion + ".jar");
-            if (jarFile.isFile())
-               return jarFile;
-         }
-         return null;
+      public synchronized File find(KotlinLibrary library, String kotlinVersion) {
+         if (index == null)
+            index = LocalRepositoryIndex.scanGradle(new File(System.getProperty("user.home"), cacheDir));
+         return index.get(LocalRepositoryIndex.key(library, library.getVersionOf(kotlinVersion)));
       }
 
       static String cacheDir = q("<.gradle/caches/modules-2/files-2.1/>");
@@ -560,15 +4417,18 @@ public class MCKTResolver {
       }
    }
 
+   /**
+    * The finder for maven local repository. {@code <group path>/<artifact>/<version>/<artifact>-<version>.jar}
+    * of all kotlin libraries are listed at the first lookup.
+    */
    static class MavenKotlinCacheFinder implements KotlinCacheFinder {
+      Map<String, File> index;
+
       @Override
-      public File find(KotlinLibrary library, String kotlinVersion) {
-         File jarFile = new File(System.getProperty("user.home"),
-                 cacheDir + library.groupId.replace('.', '/')
-                         + '/' + library.architectName + '/' + kotlinVersion + '/' + library + '-' + kotlinVersion + ".jar");
-         if (jarFile.isFile())
-            return jarFile;
-         return null;
+      public synchronized File find(KotlinLibrary library, String kotlinVersion) {
+         if (index == null)
+            index = LocalRepositoryIndex.scanMaven(new File(System.getProperty("user.home"), cacheDir));
+         return index.get(LocalRepositoryIndex.key(library, library.getVersionOf(kotlinVersion)));
       }
 
       static String cacheDir = q("<.m2/repository/>");
@@ -577,37 +4437,130 @@ public class MCKTResolver {
       }
    }
 
+   /**
+    * Lists jars of kotlin libraries in local repositories.
+    * The key of the index is {@code <group>:<artifact>:<version>}.
+    */
+   static class LocalRepositoryIndex {
+      static String key(KotlinLibrary library, String version) {
+         return library.groupId + ':' + library.architectName + ':' + version;
+      }
+
+      static Map<String, File> scanGradle(File root) {
+         Map<String, File> index = new HashMap<String, File>();
+         for (KotlinLibrary library : KotlinLibrary.VALUES) {
+            File artifactDir = new File(root, library.groupId + '/' + library.architectName);
+            for (File versionDir : orEmpty(artifactDir.listFiles())) {
+               String version = versionDir.getName();
+               String fileName = library.architectName + '-' + version + ".jar";
+               for (File hashDir : orEmpty(versionDir.listFiles())) {
+                  File jarFile = new File(hashDir, fileName);
+                  if (jarFile.isFile()) {
+                     index.put(key(library, version), jarFile);
+                     break;
+                  }
+               }
+            }
+         }
+         return index;
+      }
+
+      static Map<String, File> scanMaven(File root) {
+         Map<String, File> index = new HashMap<String, File>();
+         for (KotlinLibrary library : KotlinLibrary.VALUES) {
+            File artifactDir = new File(root, library.groupId.replace('.', '/') + '/' + library.architectName);
+            for (File versionDir : orEmpty(artifactDir.listFiles())) {
+               String version = versionDir.getName();
+               File jarFile = new File(versionDir, library.architectName + '-' + version + ".jar");
+               if (jarFile.isFile())
+                  index.put(key(library, version), jarFile);
+            }
+         }
+         return index;
+      }
+
+      public static void staticInit() {
+      }
+   }
+
+   /**
+    * The finder for jars downloaded by MCKTResolver. Downloaded jar has {@code .sha1} file.
+    * After the jar is verified with SHA-1, {@code .stamp} file records the length and last modified time of the jar
+    * so later lookups only need {@code stat} until the jar is modified.
+    */
    static class MCKTKotlinCacheFinder implements KotlinCacheFinder {
       @Override
       public File find(KotlinLibrary library, String kotlinVersion) {
          File jarFile = getCacheFile(library, kotlinVersion);
-         if (!jarFile.isFile()) return null;
+         if (!verify(jarFile)) return null;
+         return jarFile;
+      }
 
-         InputStream in = null;
-         DigesterOutputStream out = null;
-         byte[] hash;
+      /**
+       * Verifies cached jars of the libraries in parallel and records stamps for them
+       * so {@link #find(KotlinLibrary, String)} doesn't need hashing.
+       */
+      void verifyAll(Collection<KotlinLibrary> libraries, String kotlinVersion) {
+         if (libraries.isEmpty()) return;
+         ExecutorService executor = newWorkerPool("MCKT-Resolver-Verifier", libraries.size());
          try {
-            try {
-               in = new BufferedInputStream(new FileInputStream(jarFile));
-               out = new DigesterOutputStream(getSha1());
-               copy(in, out);
-               in.close();
-               in = new BufferedInputStream(new FileInputStream(jarFile + ".sha1"));
-               hash = new byte[20];
-               if (in.read(hash) != 20) return null;
-            } finally {
-               if (out != null) {
-                  out.close();
-               }
-               if (in != null) in.close();
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (KotlinLibrary library : libraries) {
+               final File jarFile = getCacheFile(library, kotlinVersion);
+               futures.add(executor.submit(new Callable<Boolean>() {
+                  @Override
+                  public Boolean call() {
+                     return verify(jarFile);
+                  }
+               }));
             }
+            for (Future<Boolean> future : futures) {
+               getFuture(future);
+            }
+         } finally {
+            executor.shutdownNow();
+         }
+      }
+
+      static boolean verify(File jarFile) {
+         if (!jarFile.isFile()) return false;
+         String expected = readTextFile(new File(jarFile + ".sha1"));
+         if (expected == null || expected.length() != 40) return false;
+
+         File stampFile = new File(jarFile + ".stamp");
+         if (stampMatches(readTextFile(stampFile), expected, jarFile)) return true;
+
+         String actual;
+         try {
+            actual = sha1Of(jarFile);
          } catch (IOException e) {
-            return null;
+            return false;
          }
-         if (!Arrays.equals(toHexBytes(out.digest.digest()), hash))
-            return null;
+         if (!expected.equalsIgnoreCase(actual)) return false;
 
-         return jarFile;
+         writeStamp(jarFile, actual);
+         return true;
+      }
+
+      static void writeStamp(File jarFile, String sha1) {
+         try {
+            writeTextFile(new File(jarFile + ".stamp"), sha1 + ' ' + jarFile.length() + ' ' + jarFile.lastModified());
+         } catch (IOException e) {
+            log("failed to write stamp for " + jarFile + ": " + e);
+         }
+      }
+
+      static boolean stampMatches(String stamp, String expectedSha1, File jarFile) {
+         if (stamp == null) return false;
+         String[] elements = stamp.split(" ");
+         if (elements.length != 3) return false;
+         if (!elements[0].equalsIgnoreCase(expectedSha1)) return false;
+         try {
+            return Long.parseLong(elements[1]) == jarFile.length()
+                    && Long.parseLong(elements[2]) == jarFile.lastModified();
+         } catch (NumberFormatException e) {
+            return false;
+         }
       }
 
       static File getCacheFile(KotlinLibrary packageName, String versionName) {
@@ -620,6 +4573,158 @@ public class MCKTResolver {
       }
    }
 
+   /**
+    * The list of maven repositories to download kotlin from.
+    * The list is read from system property or {@code repositories.txt} in cache directory.
+    * Latency of each repository is recorded to {@code repository-stats.properties}
+    * and the healthy repository with the smallest latency is tried first.
+    */
+   static class MavenRepositories {
+      static final String DEFAULT_REPOSITORY = "https://repo1.maven.org/maven2/";
+      static final int CONNECT_TIMEOUT = 10 * 1000;
+      static final int READ_TIMEOUT = 30 * 1000;
+
+      final List<String> repositories;
+      final File statsFile;
+      final Properties stats;
+
+      MavenRepositories(List<String> repositories, File statsFile, Properties stats) {
+         this.repositories = repositories;
+         this.statsFile = statsFile;
+         this.stats = stats;
+      }
+
+      static MavenRepositories load() {
+         List<String> repositories = parseRepositories(System.getProperty(repositoriesPropName));
+         if (repositories.isEmpty())
+            repositories = parseRepositories(readTextFile(new File(getCacheBase(), repositoriesFileName)));
+         if (repositories.isEmpty())
+            repositories = Collections.singletonList(DEFAULT_REPOSITORY);
+         File statsFile = new File(getCacheBase(), statsFileName);
+         return new MavenRepositories(repositories, statsFile, loadProperties(statsFile));
+      }
+
+      /**
+       * @param list the comma or line separated list of repositories. {@code #} starts comment.
+       */
+      static List<String> parseRepositories(String list) {
+         List<String> repositories = new ArrayList<String>();
+         if (list == null) return repositories;
+         for (String line : list.split("[,\\n]")) {
+            int comment = line.indexOf('#');
+            if (comment != -1) line = line.substring(0, comment);
+            line = line.trim();
+            if (line.length() == 0) continue;
+            repositories.add(line.endsWith("/") ? line : line + '/');
+         }
+         return repositories;
+      }
+
+      /**
+       * @return the repositories. repositories failed last time are last and others are sorted by latency.
+       */
+      synchronized List<String> ranked() {
+         List<String> ranked = new ArrayList<String>(repositories);
+         // stable sort keeps configured order for repositories not used yet
+         Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+               long failures1 = getStat(o1, "failures");
+               long failures2 = getStat(o2, "failures");
+               if (failures1 != failures2) return failures1 < failures2 ? -1 : 1;
+               long latency1 = getStat(o1, "latency");
+               long latency2 = getStat(o2, "latency");
+               return latency1 < latency2 ? -1 : latency1 == latency2 ? 0 : 1;
+            }
+         });
+         return ranked;
+      }
+
+      InputStream open(String repository, String path) throws IOException {
+         long start = System.nanoTime();
+         try {
+            URLConnection connection = new URL(repository + path).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setUseCaches(false);
+            InputStream in = connection.getInputStream();
+            recordSuccess(repository, (System.nanoTime() - start) / 1000000);
+            return in;
+         } catch (IOException e) {
+            recordFailure(repository);
+            throw e;
+         }
+      }
+
+      /**
+       * Reads checksum file like {@code .sha1} in the repository.
+       *
+       * @return the checksum in lower case. null if not published.
+       */
+      String readChecksum(String repository, String path, int length) {
+         InputStream in = null;
+         try {
+            URLConnection connection = new URL(repository + path).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setUseCaches(false);
+            in = connection.getInputStream();
+            byte[] bytes = new byte[1024];
+            int read = 0;
+            int cnt;
+            while (read < bytes.length && (cnt = in.read(bytes, read, bytes.length - read)) != -1) {
+               read += cnt;
+            }
+            // the file may be like '<hash>  <file name>'
+            String checksum = new String(bytes, 0, read, "US-ASCII").trim().split("\\s+")[0].toLowerCase();
+            if (checksum.length() != length) return null;
+            for (int i = 0; i < checksum.length(); i++) {
+               if (Character.digit(checksum.charAt(i), 16) == -1) return null;
+            }
+            return checksum;
+         } catch (IOException e) {
+            return null;
+         } finally {
+            closeQuietly(in);
+         }
+      }
+
+      synchronized void recordSuccess(String repository, long latencyMillis) {
+         long last = getStat(repository, "latency");
+         // exponential moving average to follow changes of network
+         long latency = last == 0 ? latencyMillis : (last * 3 + latencyMillis) / 4;
+         stats.setProperty(repository + ".latency", String.valueOf(latency));
+         stats.setProperty(repository + ".failures", "0");
+      }
+
+      synchronized void recordFailure(String repository) {
+         stats.setProperty(repository + ".failures", String.valueOf(getStat(repository, "failures") + 1));
+      }
+
+      synchronized long getStat(String repository, String name) {
+         try {
+            String value = stats.getProperty(repository + '.' + name);
+            return value == null ? 0 : Long.parseLong(value);
+         } catch (NumberFormatException e) {
+            return 0;
+         }
+      }
+
+      synchronized void save() {
+         try {
+            saveProperties(statsFile, stats, "MCKTResolver repository statistics");
+         } catch (IOException e) {
+            log("failed to save repository statistics: " + e);
+         }
+      }
+
+      static final String repositoriesFileName = q("<repositories.txt>");
+      static final String statsFileName = q("<repository-stats.properties>");
+
+      public static void staticInit() {
+      }
+   }
+
    static class DigesterOutputStream extends OutputStream {
       final MessageDigest digest;
 
@@ -656,6 +4761,11 @@ public class MCKTResolver {
          String getVersionOf(String version) {
             return "13.0";
          }
+
+         @Override
+         boolean hasKotlinVersion() {
+            return false;
+         }
       },
       ;
 
@@ -682,10 +4792,6 @@ public class MCKTResolver {
                  + '/' + architectFileName(version);
       }
 
-      String dottedArchitectPath(String version) {
-         return groupId + '/' + architectName + '/' + architectFileName(version);
-      }
-
       String architectFileName(String version) {
          return architectName + '-' + getVersionOf(version) + ".jar";
       }
@@ -694,6 +4800,13 @@ public class MCKTResolver {
          return version;
       }
 
+      /**
+       * @return true if the version of this library is same as the version of kotlin.
+       */
+      boolean hasKotlinVersion() {
+         return true;
+      }
+
 
       static KotlinLibrary[] VALUES = KotlinLibrary.values();
       static Map<String, KotlinLibrary> byName = new HashMap<String, KotlinLibrary>();
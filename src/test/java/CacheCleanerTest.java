@@ -0,0 +1,100 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class CacheCleanerTest {
+    static final long HOUR = 60 * 60 * 1000L;
+
+    @AfterEach
+    public void cleanUp() {
+        DownloadTest.deleteTempDirs();
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        EnviomentInitializer.init();
+        File home = DownloadTest.createTempDir();
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        try {
+            long now = System.currentTimeMillis();
+            File used = cachedJar("1.0.0", now - 3 * HOUR);
+            File old = cachedJar("1.1.0", now - 2 * HOUR);
+            File recent = cachedJar("1.2.0", now - HOUR);
+
+            // used by this process for a long time
+            assertTrue(MCKTResolver.CacheLock.markUsed(used));
+            assertTrue(new File(used + ".used").setLastModified(now - 3 * HOUR));
+
+            assertEquals(1, MCKTResolver.CacheCleaner.evict(MCKTResolver.CacheCleaner.listJars(),
+                    now - 90 * 60 * 1000L, Long.MAX_VALUE));
+            assertTrue(used.isFile());
+            assertFalse(old.isFile());
+            assertFalse(new File(old + ".sha1").exists());
+            assertFalse(new File(old + ".used").exists());
+            // the lock file is shared by all files and never removed
+            assertTrue(MCKTResolver.CacheLock.lockFile().isFile());
+            assertFalse(new File(old + ".lock").exists());
+            assertTrue(recent.isFile());
+
+            assertEquals(1, MCKTResolver.CacheCleaner.evict(MCKTResolver.CacheCleaner.listJars(),
+                    Long.MIN_VALUE, 1500));
+            assertTrue(used.isFile());
+            assertFalse(recent.isFile());
+        } finally {
+            System.setProperty("user.home", userHome);
+        }
+    }
+
+    @Test
+    public void removeOrphanedTemporaryFiles() throws Exception {
+        EnviomentInitializer.init();
+        File dir = DownloadTest.createTempDir();
+        long now = System.currentTimeMillis();
+        File orphaned = new File(dir, "mckt1234567890.jar");
+        File recent = new File(dir, "mckt2345678901.jar");
+        File injected = new File(dir, "mckt3456789012.jar");
+        File other = new File(dir, "other.jar");
+        DownloadTest.write(orphaned, "orphaned");
+        DownloadTest.write(recent, "recent");
+        DownloadTest.write(injected, "injected");
+        DownloadTest.write(other, "other");
+        assertTrue(orphaned.setLastModified(now - 48 * HOUR));
+        assertTrue(injected.setLastModified(now - 48 * HOUR));
+        assertTrue(other.setLastModified(now - 48 * HOUR));
+
+        // like a jar in the class path of running instance
+        FileInputStream open = new FileInputStream(injected);
+        try {
+            int removed = MCKTResolver.CacheCleaner.removeLegacyTempFiles(dir,
+                    now - MCKTResolver.CacheCleaner.LEGACY_TEMP_FILE_AGE);
+            assumeTrue(MCKTResolver.CacheCleaner.openFiles() != null, "open files can't be listed on this platform");
+            assertEquals(1, removed);
+            assertFalse(orphaned.exists());
+            assertTrue(recent.exists());
+            assertTrue(injected.exists());
+            assertTrue(other.exists());
+        } finally {
+            open.close();
+        }
+    }
+
+    static File cachedJar(String version, long lastUse) throws Exception {
+        File jar = MCKTResolver.MCKTKotlinCacheFinder.getCacheFile(MCKTResolver.KotlinLibrary.KotlinStdlib, version);
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 1000; i++) contents.append('a');
+        DownloadTest.write(jar, contents.toString());
+        DownloadTest.write(new File(jar + ".sha1"), DownloadTest.sha("SHA-1", contents.toString()));
+        File used = new File(jar + ".used");
+        DownloadTest.write(used, "");
+        assertTrue(used.setLastModified(lastUse));
+        return jar;
+    }
+}
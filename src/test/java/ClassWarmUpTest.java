@@ -0,0 +1,50 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ClassWarmUpTest {
+    @AfterEach
+    public void cleanUp() {
+        DownloadTest.deleteTempDirs();
+    }
+
+    @Test
+    public void warmUpAndRecord() throws Exception {
+        EnviomentInitializer.init();
+        File home = DownloadTest.createTempDir();
+        URLClassLoader loader = new URLClassLoader(new URL[] { new File("./build/libs/kotlin-stdlib.jar").toURI().toURL() }, null);
+
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        try {
+            assertEquals(Arrays.asList(MCKTResolver.ClassWarmUp.defaultClasses), MCKTResolver.ClassWarmUp.getClassNames());
+
+            int loaded = MCKTResolver.ClassWarmUp.run(loader, Arrays.asList("kotlin.Pair", "kotlin.NotExists", "java.lang.String"));
+            assertEquals(1, loaded);
+            assertTrue(MCKTResolver.ClassWarmUp.run(loader, Arrays.asList(MCKTResolver.ClassWarmUp.defaultClasses)) > 10);
+
+            List<String> recorded = MCKTResolver.ClassWarmUp.loadedKotlinClasses(loader);
+            assertNotNull(recorded);
+            assertEquals("kotlin.Pair", recorded.get(0));
+            assertTrue(recorded.contains("kotlin.jvm.internal.Intrinsics"));
+
+            MCKTResolver.ClassWarmUp.record(loader);
+            assertEquals(recorded, MCKTResolver.ClassWarmUp.getClassNames());
+
+            System.setProperty(MCKTResolver.warmUpClassesPropName, "kotlin.Unit, kotlin.Pair,java.lang.Object");
+            assertEquals(Arrays.asList("kotlin.Unit", "kotlin.Pair"), MCKTResolver.ClassWarmUp.getClassNames());
+        } finally {
+            System.setProperty("user.home", userHome);
+            System.clearProperty(MCKTResolver.warmUpClassesPropName);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CopyTest {
+    @Test
+    public void concurrentStreamCopy() throws Exception {
+        EnviomentInitializer.init();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 32; i++) {
+                final byte[] data = randomBytes(i, 300 * 1024 + i);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        MCKTResolver.DigesterOutputStream digester = new MCKTResolver.DigesterOutputStream(MCKTResolver.getSha1());
+                        MCKTResolver.copy(new ByteArrayInputStream(data), out, digester);
+                        assertArrayEquals(data, out.toByteArray());
+                        assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(data), digester.digest.digest());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void fileDigest() throws Exception {
+        EnviomentInitializer.init();
+        byte[] data = randomBytes(0, 1024 * 1024 + 17);
+        File file = File.createTempFile("mckt-copy", ".bin");
+        try {
+            write(file, data);
+            assertEquals(new String(MCKTResolver.toHexBytes(MessageDigest.getInstance("SHA-1").digest(data)), "US-ASCII"),
+                    MCKTResolver.sha1Of(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    static byte[] randomBytes(long seed, int size) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    static void write(File file, byte[] data) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
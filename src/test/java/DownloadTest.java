@@ -0,0 +1,156 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DownloadTest {
+    @AfterEach
+    public void cleanUp() {
+        deleteTempDirs();
+    }
+
+    @Test
+    public void fallbackToNextRepository() throws IOException {
+        EnviomentInitializer.init();
+        File home = createTempDir();
+        File repository = createTempDir();
+        MCKTResolver.KotlinLibrary library = MCKTResolver.KotlinLibrary.KotlinStdlib;
+        File artifact = new File(repository, library.architectPath("1.4.30"));
+        write(artifact, "kotlin-stdlib");
+
+        String broken = new File(home, "not-exists").toURI() + "/";
+        String working = repository.toURI().toString();
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        System.setProperty(MCKTResolver.repositoriesPropName, broken + "," + working);
+        try {
+            MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+            File downloaded = resolver.download(library, "1.4.30");
+            assertEquals(artifact.length(), downloaded.length());
+            assertTrue(MCKTResolver.MCKTKotlinCacheFinder.verify(downloaded));
+
+            // the working repository will be tried first
+            List<String> ranked = resolver.repositories().ranked();
+            assertEquals(Arrays.asList(working, broken), ranked);
+        } finally {
+            System.setProperty("user.home", userHome);
+            System.clearProperty(MCKTResolver.repositoriesPropName);
+        }
+    }
+
+    @Test
+    public void rejectChecksumMismatch() throws Exception {
+        EnviomentInitializer.init();
+        File home = createTempDir();
+        File poisoned = createTempDir();
+        File repository = createTempDir();
+        MCKTResolver.KotlinLibrary library = MCKTResolver.KotlinLibrary.KotlinStdlib;
+        String path = library.architectPath("1.4.30");
+
+        write(new File(poisoned, path), "poisoned");
+        write(new File(poisoned, path + ".sha1"), sha("SHA-1", "kotlin-stdlib"));
+        write(new File(repository, path), "kotlin-stdlib");
+        write(new File(repository, path + ".sha1"), sha("SHA-1", "kotlin-stdlib") + "  " + library.architectFileName("1.4.30"));
+        write(new File(repository, path + ".sha256"), sha("SHA-256", "kotlin-stdlib"));
+
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        System.setProperty(MCKTResolver.repositoriesPropName, poisoned.toURI() + "," + repository.toURI());
+        try {
+            MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+            File downloaded = resolver.download(library, "1.4.30");
+            assertEquals("kotlin-stdlib", MCKTResolver.readTextFile(downloaded));
+        } finally {
+            System.setProperty("user.home", userHome);
+            System.clearProperty(MCKTResolver.repositoriesPropName);
+        }
+    }
+
+    @Test
+    public void waitForOtherDownloader() throws Exception {
+        EnviomentInitializer.init();
+        File home = createTempDir();
+        final MCKTResolver.KotlinLibrary library = MCKTResolver.KotlinLibrary.KotlinStdlib;
+
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        // nothing can be downloaded so the jar must be the one written by the other downloader
+        System.setProperty(MCKTResolver.repositoriesPropName, new File(home, "not-exists").toURI() + "/");
+        try {
+            File cacheFile = MCKTResolver.MCKTKotlinCacheFinder.getCacheFile(library, "1.4.30");
+            MCKTResolver.CacheLock lock = MCKTResolver.CacheLock.acquire(cacheFile);
+            final File[] downloaded = new File[1];
+            Thread waiting = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        downloaded[0] = new MCKTResolver.Resolver().download(library, "1.4.30");
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            try {
+                waiting.start();
+                Thread.sleep(200);
+                assertTrue(waiting.isAlive());
+                write(cacheFile, "kotlin-stdlib");
+                write(new File(cacheFile + ".sha1"), sha("SHA-1", "kotlin-stdlib"));
+            } finally {
+                lock.close();
+            }
+            waiting.join(10000);
+            assertEquals(cacheFile, downloaded[0]);
+        } finally {
+            System.setProperty("user.home", userHome);
+            System.clearProperty(MCKTResolver.repositoriesPropName);
+        }
+    }
+
+    static String sha(String algorithm, String text) throws Exception {
+        return new String(MCKTResolver.toHexBytes(MessageDigest.getInstance(algorithm).digest(text.getBytes("UTF-8"))), "US-ASCII");
+    }
+
+    static final List<File> tempDirs = new ArrayList<File>();
+
+    /**
+     * Creates a temporary directory which is removed by {@link #deleteTempDirs()}.
+     */
+    static File createTempDir() throws IOException {
+        File dir = File.createTempFile("mckt", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        tempDirs.add(dir);
+        return dir;
+    }
+
+    /**
+     * Removes directories created by {@link #createTempDir()}. Call this in {@code @AfterEach} of tests using it.
+     */
+    static void deleteTempDirs() {
+        for (File dir : tempDirs) {
+            ScalingTest.deleteRecursively(dir);
+        }
+        tempDirs.clear();
+    }
+
+    static void write(File file, String text) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
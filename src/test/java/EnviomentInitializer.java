@@ -7,6 +7,8 @@ public class EnviomentInitializer {
 
     static {
         Launch.classLoader = new LaunchClassLoader(new URL[0]);
+        // in game, MCKTResolver is initialized before any of nested classes
+        MCKTResolver.getDouble("");
     }
 
     public static void init() {
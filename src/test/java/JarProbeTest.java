@@ -0,0 +1,153 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class JarProbeTest {
+    @Test
+    public void readSameAsJarFile() throws IOException {
+        EnviomentInitializer.init();
+        File file = new File("./build/libs/kotlin-stdlib.jar");
+        MCKTResolver.JarProbe probe = MCKTResolver.JarProbe.open(file);
+        JarFile jar = new JarFile(file);
+        try {
+            MCKTResolver.JarFileEntrySource source = new MCKTResolver.JarFileEntrySource(jar);
+            for (MCKTResolver.KotlinLibrary library : MCKTResolver.KotlinLibrary.VALUES) {
+                assertEquals(source.hasEntry(library.detectClassFileName), probe.hasEntry(library.detectClassFileName));
+            }
+            String kotlinVersion = "kotlin/KotlinVersion.class";
+            assertTrue(java.util.Arrays.equals(source.readEntry(kotlinVersion), probe.readEntry(kotlinVersion)));
+            assertEquals(jar.getManifest(), probe.getManifest());
+        } finally {
+            jar.close();
+            probe.close();
+        }
+    }
+
+    @Test
+    public void readJarWithComment() throws IOException {
+        EnviomentInitializer.init();
+        File modsDir = createTempDir();
+        File mod = new File(modsDir, "commented.jar");
+        try {
+            Manifest manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            JarOutputStream out = new JarOutputStream(new FileOutputStream(mod), manifest);
+            try {
+                out.putNextEntry(new ZipEntry(MCKTResolver.KotlinLibrary.KotlinStdlib.detectClassFileName));
+                out.closeEntry();
+                // contains the signature of the end of central directory record
+                out.setComment("comment PK\u0005\u0006 " + new String(new char[1000]).replace('\0', 'c'));
+            } finally {
+                out.close();
+            }
+            assertProbed(mod);
+
+            // bytes padded after the comment
+            FileOutputStream padding = new FileOutputStream(mod, true);
+            try {
+                padding.write(new byte[100]);
+            } finally {
+                padding.close();
+            }
+            assertProbed(mod);
+        } finally {
+            mod.delete();
+            modsDir.delete();
+        }
+    }
+
+    private static void assertProbed(File mod) throws IOException {
+        MCKTResolver.JarProbe probe = MCKTResolver.JarProbe.open(mod);
+        try {
+            assertTrue(probe.hasEntry(MCKTResolver.KotlinLibrary.KotlinStdlib.detectClassFileName));
+            assertNotNull(probe.getManifest());
+        } finally {
+            probe.close();
+        }
+    }
+
+    @Test
+    public void noFileDescriptorLeak() throws IOException {
+        EnviomentInitializer.init();
+        File fdDir = new File("/proc/self/fd");
+        assumeTrue(fdDir.isDirectory(), "file descriptors can't be counted on this platform");
+
+        File modsDir = createTempDir();
+        List<File> mods = new ArrayList<File>();
+        for (int i = 0; i < 500; i++) {
+            mods.add(createMod(new File(modsDir, "mod-" + i + ".jar"), i));
+        }
+
+        MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+        // load classes used by scanning first
+        resolver.scanMods(mods.subList(0, 1));
+
+        int before = countFileDescriptors(fdDir);
+        List<MCKTResolver.ModScanResult> results = resolver.scanMods(mods);
+        int after = countFileDescriptors(fdDir);
+
+        assertEquals(mods.size(), results.size());
+        for (MCKTResolver.ModScanResult result : results) {
+            assertNotNull(result);
+        }
+        assertEquals(before, after, "file descriptors opened by scanning are not closed");
+
+        for (File mod : mods) {
+            assertTrue(mod.delete());
+        }
+        assertTrue(modsDir.delete());
+    }
+
+    private static int countFileDescriptors(File fdDir) {
+        String[] fds = fdDir.list();
+        return fds == null ? -1 : fds.length;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("mckt-mods", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        return dir;
+    }
+
+    private static File createMod(File file, int index) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (index % 3 == 0) {
+            manifest.getMainAttributes().putValue("MCKT-MF-Version", "1");
+            manifest.getMainAttributes().putValue("MCKT-KT-Version", "1.4.30");
+            manifest.getMainAttributes().putValue("MCKT-KT-Parts", "kotlin-stdlib");
+        }
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest);
+        try {
+            for (int i = 0; i < 20; i++) {
+                out.putNextEntry(new ZipEntry("com/example/mod" + index + "/Class" + i + ".class"));
+                out.write(new byte[256 + i]);
+                out.closeEntry();
+            }
+            if (index % 3 == 1) {
+                out.putNextEntry(new ZipEntry(MCKTResolver.KotlinLibrary.JetbrainsAnnotation.detectClassFileName));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        assertFalse(file.length() == 0);
+        return file;
+    }
+}
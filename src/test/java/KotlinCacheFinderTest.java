@@ -0,0 +1,141 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KotlinCacheFinderTest {
+    @AfterEach
+    public void cleanUp() {
+        DownloadTest.deleteTempDirs();
+    }
+
+    @Test
+    public void hexBytes() {
+        assertEquals("00ff7f80", new String(MCKTResolver.toHexBytes(new byte[] { 0x00, (byte) 0xff, 0x7f, (byte) 0x80 })));
+    }
+
+    @Test
+    public void verifyWithStamp() throws IOException {
+        EnviomentInitializer.init();
+        File jar = File.createTempFile("mckt-cache", ".jar");
+        File sha1 = new File(jar + ".sha1");
+        File stamp = new File(jar + ".stamp");
+        try {
+            write(jar, "jar contents");
+            write(sha1, MCKTResolver.sha1Of(jar));
+
+            assertTrue(MCKTResolver.MCKTKotlinCacheFinder.verify(jar));
+            assertTrue(stamp.isFile());
+            assertTrue(MCKTResolver.MCKTKotlinCacheFinder.verify(jar));
+
+            write(jar, "broken contents");
+            assertFalse(MCKTResolver.MCKTKotlinCacheFinder.verify(jar));
+        } finally {
+            jar.delete();
+            sha1.delete();
+            stamp.delete();
+        }
+    }
+
+    @Test
+    public void localRepositories() throws IOException {
+        EnviomentInitializer.init();
+        File home = DownloadTest.createTempDir();
+        File gradleStdlib = new File(home, ".gradle/caches/modules-2/files-2.1/org.jetbrains.kotlin/kotlin-stdlib/1.4.30/0123abcd/kotlin-stdlib-1.4.30.jar");
+        File gradleSources = new File(home, ".gradle/caches/modules-2/files-2.1/org.jetbrains.kotlin/kotlin-stdlib/1.4.30/4567cdef/kotlin-stdlib-1.4.30-sources.jar");
+        File gradleAnnotations = new File(home, ".gradle/caches/modules-2/files-2.1/org.jetbrains/annotations/13.0/89abcdef/annotations-13.0.jar");
+        File mavenReflect = new File(home, ".m2/repository/org/jetbrains/kotlin/kotlin-reflect/1.4.30/kotlin-reflect-1.4.30.jar");
+        write(gradleSources, "sources");
+        write(gradleStdlib, "stdlib");
+        write(gradleAnnotations, "annotations");
+        write(mavenReflect, "reflect");
+
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        try {
+            MCKTResolver.GradleKotlinCacheFinder gradle = new MCKTResolver.GradleKotlinCacheFinder();
+            assertEquals(gradleStdlib, gradle.find(MCKTResolver.KotlinLibrary.KotlinStdlib, "1.4.30"));
+            assertEquals(gradleAnnotations, gradle.find(MCKTResolver.KotlinLibrary.JetbrainsAnnotation, "1.4.30"));
+            assertNull(gradle.find(MCKTResolver.KotlinLibrary.KotlinStdlib, "1.4.20"));
+
+            MCKTResolver.MavenKotlinCacheFinder maven = new MCKTResolver.MavenKotlinCacheFinder();
+            assertEquals(mavenReflect, maven.find(MCKTResolver.KotlinLibrary.KotlinReflect, "1.4.30"));
+            assertNull(maven.find(MCKTResolver.KotlinLibrary.KotlinStdlib, "1.4.30"));
+        } finally {
+            System.setProperty("user.home", userHome);
+        }
+    }
+
+    @Test
+    public void concurrentLookupKeepsPriority() throws Exception {
+        EnviomentInitializer.init();
+        final File slow = new File("slow.jar");
+        final File fast = new File("fast.jar");
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        MCKTResolver.KotlinCacheFinder[] finders = new MCKTResolver.KotlinCacheFinder[] {
+                new MCKTResolver.KotlinCacheFinder() {
+                    @Override
+                    public File find(MCKTResolver.KotlinLibrary library, String kotlinVersion) {
+                        if (library != MCKTResolver.KotlinLibrary.KotlinStdlib) return null;
+                        sleep(200);
+                        return slow;
+                    }
+                },
+                new MCKTResolver.KotlinCacheFinder() {
+                    @Override
+                    public File find(MCKTResolver.KotlinLibrary library, String kotlinVersion) {
+                        return fast;
+                    }
+                },
+                new MCKTResolver.KotlinCacheFinder() {
+                    @Override
+                    public File find(MCKTResolver.KotlinLibrary library, String kotlinVersion) {
+                        try {
+                            Thread.sleep(10000);
+                        } catch (InterruptedException e) {
+                            cancelled.countDown();
+                        }
+                        return null;
+                    }
+                },
+        };
+        MCKTResolver.CacheLookup lookup = new MCKTResolver.CacheLookup(finders);
+        EnumMap<MCKTResolver.KotlinLibrary, File> found = lookup.findConcurrently(
+                EnumSet.of(MCKTResolver.KotlinLibrary.KotlinStdlib, MCKTResolver.KotlinLibrary.KotlinReflect), "1.4.30");
+
+        assertEquals(slow, found.get(MCKTResolver.KotlinLibrary.KotlinStdlib));
+        assertEquals(fast, found.get(MCKTResolver.KotlinLibrary.KotlinReflect));
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        assertTrue(lookup.getNanos(0) >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void write(File file, String text) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ManifestV2Test {
+    static final String JAR_NAME = "libs/kotlin-stdlib.jar";
+
+    @AfterEach
+    public void cleanUp() {
+        DownloadTest.deleteTempDirs();
+    }
+
+    @Test
+    public void resolverVersionFollowsManifestVersion() {
+        EnviomentInitializer.init();
+        // resolvers only take over older resolvers so the resolver reading a newer manifest must be newer
+        assertTrue(MCKTResolver.RESOLVER_VERSION >= MCKTResolver.MANIFEST_VERSION,
+                "raise RESOLVER_VERSION to " + MCKTResolver.MANIFEST_VERSION + ".0 or later with MANIFEST_VERSION");
+    }
+
+    @Test
+    public void trustDeclaredJars() throws Exception {
+        EnviomentInitializer.init();
+        File stdlib = new File("./build/libs/kotlin-stdlib.jar");
+        String sha1 = MCKTResolver.sha1Of(stdlib);
+        File mod = File.createTempFile("mckt-manifest-v2", ".jar");
+        try {
+            writeMod(mod, stdlib, sha1, String.valueOf(stdlib.length()), Constants.KOTLIN_VERSION_STR);
+            MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+            resolver.collectKotlinInMod(mod);
+
+            assertArrayEquals(Constants.KOTLIN_VERSION, resolver.version);
+            assertTrue(resolver.bundledElements.containsKey(MCKTResolver.KotlinLibrary.KotlinStdlib));
+            assertEquals(sha1, resolver.bundledSha1.get(MCKTResolver.KotlinLibrary.KotlinStdlib));
+        } finally {
+            mod.delete();
+        }
+    }
+
+    @Test
+    public void olderJarIsNotUsed() throws Exception {
+        EnviomentInitializer.init();
+        File stdlib = new File("./build/libs/kotlin-stdlib.jar");
+        File mod = File.createTempFile("mckt-manifest-v2", ".jar");
+        try {
+            writeMod(mod, stdlib, MCKTResolver.sha1Of(stdlib), String.valueOf(stdlib.length()), "1.3.0");
+            MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+            resolver.collectKotlinInMod(mod);
+
+            assertArrayEquals(Constants.KOTLIN_VERSION, resolver.version);
+            assertTrue(resolver.libs.contains(MCKTResolver.KotlinLibrary.KotlinStdlib));
+            assertFalse(resolver.bundledElements.containsKey(MCKTResolver.KotlinLibrary.KotlinStdlib));
+        } finally {
+            mod.delete();
+        }
+    }
+
+    @Test
+    public void newerJarKeepsOtherJarsOfMod() throws Exception {
+        EnviomentInitializer.init();
+        File annotations = File.createTempFile("mckt-annotations", ".jar");
+        File stdlib = new File("./build/libs/kotlin-stdlib.jar");
+        File mod = File.createTempFile("mckt-manifest-v2", ".jar");
+        try {
+            DownloadTest.write(annotations, "annotations");
+            // MCKT-KT-Version is older than the jar
+            writeMod(mod, "1.3.0", new String[] { "annotations", "kotlin-stdlib" },
+                    new String[] { "libs/annotations.jar", JAR_NAME }, new File[] { annotations, stdlib },
+                    new String[] { MCKTResolver.sha1Of(annotations), MCKTResolver.sha1Of(stdlib) },
+                    new String[] { String.valueOf(annotations.length()), String.valueOf(stdlib.length()) },
+                    new String[] { "13.0", Constants.KOTLIN_VERSION_STR });
+            MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+            resolver.collectKotlinInMod(mod);
+
+            assertArrayEquals(Constants.KOTLIN_VERSION, resolver.version);
+            assertTrue(resolver.bundledElements.containsKey(MCKTResolver.KotlinLibrary.JetbrainsAnnotation));
+            assertTrue(resolver.bundledElements.containsKey(MCKTResolver.KotlinLibrary.KotlinStdlib));
+        } finally {
+            annotations.delete();
+            mod.delete();
+        }
+    }
+
+    @Test
+    public void sizeMismatch() throws Exception {
+        EnviomentInitializer.init();
+        File stdlib = new File("./build/libs/kotlin-stdlib.jar");
+        File mod = File.createTempFile("mckt-manifest-v2", ".jar");
+        try {
+            writeMod(mod, stdlib, MCKTResolver.sha1Of(stdlib), String.valueOf(stdlib.length() + 1),
+                    Constants.KOTLIN_VERSION_STR);
+            MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+            resolver.collectKotlinInMod(mod);
+
+            // the jar will be downloaded
+            assertArrayEquals(Constants.KOTLIN_VERSION, resolver.version);
+            assertTrue(resolver.libs.contains(MCKTResolver.KotlinLibrary.KotlinStdlib));
+            assertFalse(resolver.bundledElements.containsKey(MCKTResolver.KotlinLibrary.KotlinStdlib));
+        } finally {
+            mod.delete();
+        }
+    }
+
+    @Test
+    public void invalidVersion2AttributesAreIgnored() throws Exception {
+        EnviomentInitializer.init();
+        File stdlib = new File("./build/libs/kotlin-stdlib.jar");
+        File mod = File.createTempFile("mckt-manifest-v2", ".jar");
+        try {
+            writeMod(mod, stdlib, MCKTResolver.sha1Of(stdlib), String.valueOf(stdlib.length()), "not-a-version");
+            MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+            resolver.collectKotlinInMod(mod);
+
+            // same as version 1
+            assertArrayEquals(Constants.KOTLIN_VERSION, resolver.version);
+            assertTrue(resolver.bundledElements.containsKey(MCKTResolver.KotlinLibrary.KotlinStdlib));
+            assertNull(resolver.bundledSha1.get(MCKTResolver.KotlinLibrary.KotlinStdlib));
+        } finally {
+            mod.delete();
+        }
+    }
+
+    @Test
+    public void extractWithDeclaredSha1() throws Exception {
+        EnviomentInitializer.init();
+        File stdlib = new File("./build/libs/kotlin-stdlib.jar");
+        String sha1 = MCKTResolver.sha1Of(stdlib);
+        File mod = File.createTempFile("mckt-manifest-v2", ".jar");
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", DownloadTest.createTempDir().getPath());
+        try {
+            writeMod(mod, stdlib, sha1, String.valueOf(stdlib.length()), Constants.KOTLIN_VERSION_STR);
+            final URL jarUrl = new URL("jar:" + mod.toURI() + "!/" + JAR_NAME);
+
+            assertThrows(IOException.class, new Executable() {
+                @Override
+                public void execute() throws Throwable {
+                    MCKTResolver.ExtractedJarCache.extract(jarUrl, "0000000000000000000000000000000000000000");
+                }
+            });
+            File extracted = MCKTResolver.ExtractedJarCache.extract(jarUrl, sha1);
+            assertEquals(sha1 + ".jar", extracted.getName());
+            assertEquals(sha1, MCKTResolver.MergedRuntimeJar.hashOf(extracted));
+
+            // the cached jar is used without reading the mod
+            assertTrue(mod.delete());
+            assertEquals(extracted, MCKTResolver.ExtractedJarCache.extract(jarUrl, sha1));
+        } finally {
+            System.setProperty("user.home", userHome);
+            mod.delete();
+        }
+    }
+
+    static void writeMod(File mod, File stdlib, String sha1, String size, String jarVersion) throws IOException {
+        writeMod(mod, Constants.KOTLIN_VERSION_STR, new String[] { "kotlin-stdlib" }, new String[] { JAR_NAME },
+                new File[] { stdlib }, new String[] { sha1 }, new String[] { size }, new String[] { jarVersion });
+    }
+
+    static void writeMod(File mod, String ktVersion, String[] parts, String[] names, File[] jars,
+                         String[] sha1, String[] sizes, String[] jarVersions) throws IOException {
+        String[] crcs = new String[jars.length];
+        for (int i = 0; i < jars.length; i++) {
+            crcs[i] = Long.toHexString(crcOf(jars[i]));
+        }
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("MCKT-MF-Version", "2");
+        attributes.putValue("MCKT-KT-Version", ktVersion);
+        attributes.putValue("MCKT-KT-Parts", join(parts));
+        attributes.putValue("MCKT-KT-Jars", join(names));
+        attributes.putValue("MCKT-KT-Jars-SHA1", join(sha1));
+        attributes.putValue("MCKT-KT-Jars-Size", join(sizes));
+        attributes.putValue("MCKT-KT-Jars-CRC", join(crcs));
+        attributes.putValue("MCKT-KT-Jars-Version", join(jarVersions));
+
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(mod), manifest);
+        try {
+            for (int i = 0; i < jars.length; i++) {
+                out.putNextEntry(new ZipEntry(names[i]));
+                InputStream in = new FileInputStream(jars[i]);
+                try {
+                    MCKTResolver.copy(in, out);
+                } finally {
+                    in.close();
+                }
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static String join(String[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() != 0) builder.append(',');
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+    static long crcOf(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+}
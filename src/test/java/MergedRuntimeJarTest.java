@@ -0,0 +1,97 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MergedRuntimeJarTest {
+    @AfterEach
+    public void cleanUp() {
+        DownloadTest.deleteTempDirs();
+    }
+
+    @Test
+    public void mergeAndReuse() throws Exception {
+        EnviomentInitializer.init();
+        File home = DownloadTest.createTempDir();
+        File annotations = new File(home, "annotations.jar");
+        writeJar(annotations,
+                "org/jetbrains/annotations/Nullable.class", "nullable",
+                "kotlin/Pair.class", "shadowed",
+                "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n",
+                "META-INF/services/test.Service", "test.AnnotationsService");
+
+        EnumMap<MCKTResolver.KotlinLibrary, File> jars = new EnumMap<MCKTResolver.KotlinLibrary, File>(MCKTResolver.KotlinLibrary.class);
+        jars.put(MCKTResolver.KotlinLibrary.KotlinStdlib, new File("./build/libs/kotlin-stdlib.jar"));
+        jars.put(MCKTResolver.KotlinLibrary.JetbrainsAnnotation, annotations);
+
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        try {
+            File merged = MCKTResolver.MergedRuntimeJar.getOrCreate(jars);
+            assertEquals(new File(MCKTResolver.getCacheBase(), "merged"), merged.getParentFile());
+
+            JarFile jar = new JarFile(merged);
+            try {
+                String index = new String(readAll(jar.getInputStream(jar.getEntry("META-INF/INDEX.LIST"))), "UTF-8");
+                assertTrue(index.startsWith("JarIndex-Version: 1.0\n\n" + merged.getName() + "\n"));
+                assertTrue(Arrays.asList(index.split("\n")).contains("kotlin"));
+                assertTrue(Arrays.asList(index.split("\n")).contains("org/jetbrains/annotations"));
+                assertNotNull(jar.getManifest());
+            } finally {
+                jar.close();
+            }
+
+            URLClassLoader loader = new URLClassLoader(new URL[] { merged.toURI().toURL() }, null);
+            Class<?> kotlinVersion = loader.loadClass("kotlin.KotlinVersion");
+            assertEquals(Constants.KOTLIN_VERSION_STR, kotlinVersion.getField("CURRENT").get(null).toString());
+            assertNotNull(loader.getResource("org/jetbrains/annotations/Nullable.class"));
+            assertNull(loader.getResource("module-info.class"));
+
+            // the merged jar is reused
+            assertTrue(merged.setLastModified(1000));
+            assertEquals(merged, MCKTResolver.MergedRuntimeJar.getOrCreate(jars));
+            assertEquals(1000, merged.lastModified());
+        } finally {
+            System.setProperty("user.home", userHome);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MCKTResolver.copy(in, out);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    static void writeJar(File file, String... nameAndContents) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < nameAndContents.length; i += 2) {
+                out.putNextEntry(new ZipEntry(nameAndContents[i]));
+                out.write(nameAndContents[i + 1].getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ModScanIndexTest {
+    @Test
+    public void roundTrip() throws IOException {
+        EnviomentInitializer.init();
+        File indexFile = File.createTempFile("mckt-index", ".bin");
+        File mod = new File("./build/libs/manifest-jar.jar");
+        MCKTResolver.FileStamp stamp = MCKTResolver.FileStamp.of(mod);
+
+        MCKTResolver.ModScanIndex index = new MCKTResolver.ModScanIndex(indexFile);
+        index.put(stamp, new MCKTResolver.ModScanResult(mod, EnumSet.of(MCKTResolver.KotlinLibrary.KotlinStdlib),
+                "1.4.30", "1", "1.4.30", "kotlin-stdlib", null));
+        index.save();
+
+        MCKTResolver.ModScanIndex loaded = new MCKTResolver.ModScanIndex(indexFile);
+        loaded.load();
+        MCKTResolver.ModScanResult result = loaded.get(stamp, mod);
+        assertNotNull(result);
+        assertEquals(EnumSet.of(MCKTResolver.KotlinLibrary.KotlinStdlib), result.shadowedLibs);
+        assertEquals("1.4.30", result.shadowedVersion);
+        assertEquals("kotlin-stdlib", result.parts);
+        assertNull(result.jars);
+
+        // changed mods are not answered from index
+        MCKTResolver.FileStamp changed = new MCKTResolver.FileStamp(stamp.path, stamp.length + 1, stamp.lastModified);
+        assertNull(loaded.get(changed, mod));
+        indexFile.delete();
+    }
+
+    @Test
+    public void brokenRecord() throws IOException {
+        EnviomentInitializer.init();
+        File indexFile = File.createTempFile("mckt-index", ".bin");
+        File mod = new File("./build/libs/manifest-jar.jar");
+        MCKTResolver.FileStamp stamp = MCKTResolver.FileStamp.of(mod);
+
+        MCKTResolver.ModScanIndex index = new MCKTResolver.ModScanIndex(indexFile);
+        index.put(stamp, new MCKTResolver.ModScanResult(mod, EnumSet.noneOf(MCKTResolver.KotlinLibrary.class),
+                null, null, null, null, null));
+        index.save();
+
+        // flip a byte in the record
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        try {
+            file.seek(16);
+            int b = file.read();
+            file.seek(16);
+            file.write(b ^ 0xFF);
+        } finally {
+            file.close();
+        }
+
+        MCKTResolver.ModScanIndex loaded = new MCKTResolver.ModScanIndex(indexFile);
+        loaded.load();
+        assertNull(loaded.get(stamp, mod));
+        indexFile.delete();
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates mods directory like a large modpack. The jars built by {@code manifestJar} and {@code kotlinStdlibJar}
+ * tasks are used as templates. For each 20 mods, the mods directory has
+ * <ul>
+ *     <li>a mod shadows kotlin-stdlib of the template</li>
+ *     <li>a mod shadows kotlin-stdlib of an older version, detected from the manifest</li>
+ *     <li>a MCKT manifest mod with {@code MCKT-KT-Jars}, a copy of the template</li>
+ *     <li>a MCKT manifest mod without {@code MCKT-KT-Jars}</li>
+ *     <li>a large non-kotlin mod</li>
+ *     <li>15 small non-kotlin mods</li>
+ * </ul>
+ * Jars of the same kind are copies of one generated jar to save time.
+ */
+public class ModpackGenerator {
+    static final String[] OLD_VERSIONS = { "1.3.72", "1.4.10", "1.4.21" };
+
+    final File templates;
+    final File manifestJar;
+    final File kotlinStdlibJar;
+    final String kotlinVersion;
+
+    public ModpackGenerator(File templates, File manifestJar, File kotlinStdlibJar, String kotlinVersion) {
+        this.templates = templates;
+        this.manifestJar = manifestJar;
+        this.kotlinStdlibJar = kotlinStdlibJar;
+        this.kotlinVersion = kotlinVersion;
+    }
+
+    public void generate(File modsDir, int count) throws IOException {
+        modsDir.mkdirs();
+        for (int i = 0; i < count; i++) {
+            String name;
+            File template;
+            switch (i % 20) {
+                case 0:
+                    name = "shaded";
+                    template = template("shaded.jar", new JarWriter() {
+                        @Override
+                        public void write(ZipOutputStream out) throws IOException {
+                            copyEntries(kotlinStdlibJar, out);
+                            writeClasses(out, "com/example/shaded/", 300, 0);
+                        }
+                    });
+                    break;
+                case 1:
+                    name = "shaded-old";
+                    final String oldVersion = OLD_VERSIONS[(i / 20) % OLD_VERSIONS.length];
+                    template = template("shaded-" + oldVersion + ".jar", new JarWriter() {
+                        @Override
+                        public void write(ZipOutputStream out) throws IOException {
+                            Manifest manifest = newManifest();
+                            manifest.getMainAttributes().putValue("Implementation-Title", "kotlin-stdlib");
+                            manifest.getMainAttributes().putValue("Implementation-Version", oldVersion + "-release-1");
+                            writeManifest(out, manifest);
+                            out.putNextEntry(new ZipEntry("kotlin/Pair.class"));
+                            out.closeEntry();
+                            writeClasses(out, "com/example/shadedold/", 300, 1);
+                        }
+                    });
+                    break;
+                case 2:
+                    name = "manifest";
+                    template = manifestJar;
+                    break;
+                case 3:
+                    name = "manifest-parts";
+                    template = template("manifest-parts.jar", new JarWriter() {
+                        @Override
+                        public void write(ZipOutputStream out) throws IOException {
+                            Manifest manifest = newManifest();
+                            manifest.getMainAttributes().putValue("MCKT-MF-Version", "1");
+                            manifest.getMainAttributes().putValue("MCKT-KT-Version", kotlinVersion);
+                            manifest.getMainAttributes().putValue("MCKT-KT-Parts", "kotlin-stdlib,kotlin-reflect");
+                            writeManifest(out, manifest);
+                            writeClasses(out, "com/example/parts/", 300, 2);
+                        }
+                    });
+                    break;
+                case 4:
+                    name = "large";
+                    template = template("large.jar", new JarWriter() {
+                        @Override
+                        public void write(ZipOutputStream out) throws IOException {
+                            writeManifest(out, newManifest());
+                            writeClasses(out, "com/example/large/", 5000, 3);
+                        }
+                    });
+                    break;
+                default:
+                    name = "small";
+                    template = template("small.jar", new JarWriter() {
+                        @Override
+                        public void write(ZipOutputStream out) throws IOException {
+                            writeManifest(out, newManifest());
+                            writeClasses(out, "com/example/small/", 100, 4);
+                        }
+                    });
+                    break;
+            }
+            copy(template, new File(modsDir, String.format("%05d-%s.jar", i, name)));
+        }
+    }
+
+    interface JarWriter {
+        void write(ZipOutputStream out) throws IOException;
+    }
+
+    File template(String name, JarWriter writer) throws IOException {
+        File file = new File(templates, name);
+        if (file.isFile()) return file;
+        templates.mkdirs();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            writer.write(out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static Manifest newManifest() {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        return manifest;
+    }
+
+    static void writeManifest(ZipOutputStream out, Manifest manifest) throws IOException {
+        out.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+        manifest.write(out);
+        out.closeEntry();
+    }
+
+    static void writeClasses(ZipOutputStream out, String prefix, int count, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] buffer = new byte[4096];
+        for (int i = 0; i < count; i++) {
+            out.putNextEntry(new ZipEntry(prefix + "Class" + i + ".class"));
+            int size = 512 + random.nextInt(2048);
+            // class files are compressed about a half
+            for (int j = 0; j < size; j++) {
+                buffer[j] = (byte) (j % 2 == 0 ? random.nextInt(256) : random.nextInt(4));
+            }
+            out.write(buffer, 0, size);
+            out.closeEntry();
+        }
+    }
+
+    static void copyEntries(File jar, ZipOutputStream out) throws IOException {
+        ZipFile zip = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) continue;
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    MCKTResolver.copy(in, out);
+                } finally {
+                    in.close();
+                }
+                out.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                MCKTResolver.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
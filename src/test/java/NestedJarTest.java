@@ -0,0 +1,250 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NestedJarTest {
+    @AfterEach
+    public void cleanUp() {
+        DownloadTest.deleteTempDirs();
+    }
+
+    @Test
+    public void extractDeflatedJar() throws Exception {
+        EnviomentInitializer.init();
+        File outer = new File("./build/libs/manifest-jar.jar");
+        URL jarUrl = new URL("jar:" + outer.toURI() + "!/" + nestedStdlibName(outer));
+        // loading it directly needs the inflated jar in heap
+        assertNull(MCKTResolver.NestedJarURLStreamHandler.INSTANCE.register(MCKTResolver.KotlinLibrary.KotlinStdlib, jarUrl));
+
+        String userHome = System.getProperty("user.home");
+        File home = DownloadTest.createTempDir();
+        System.setProperty("user.home", home.getPath());
+        try {
+            URL url = new MCKTResolver.Resolver().useNestedJar(MCKTResolver.KotlinLibrary.KotlinStdlib, jarUrl);
+            assertEquals("file", url.getProtocol());
+            assertLoadable(url);
+        } finally {
+            System.setProperty("user.home", userHome);
+            ScalingTest.deleteRecursively(home);
+        }
+    }
+
+    @Test
+    public void loadFromStoredJar() throws Exception {
+        EnviomentInitializer.init();
+        byte[] stdlib = readAll(new FileInputStream("./build/libs/kotlin-stdlib.jar"));
+        File outer = File.createTempFile("mckt-stored", ".jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(outer));
+        try {
+            ZipEntry entry = new ZipEntry("libs/kotlin stdlib.jar");
+            CRC32 crc = new CRC32();
+            crc.update(stdlib);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stdlib.length);
+            entry.setCrc(crc.getValue());
+            out.putNextEntry(entry);
+            out.write(stdlib);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        URL nested = MCKTResolver.NestedJarURLStreamHandler.INSTANCE.register(MCKTResolver.KotlinLibrary.KotlinStdlib,
+                new URL("jar:" + outer.toURI() + "!/libs/kotlin%20stdlib.jar"));
+        assertNotNull(nested);
+        assertLoadable(nested);
+        outer.delete();
+    }
+
+    @Test
+    public void extractToContentAddressedCache() throws Exception {
+        EnviomentInitializer.init();
+        File outer = new File("./build/libs/manifest-jar.jar");
+        URL jarUrl = new URL("jar:" + outer.toURI() + "!/" + nestedStdlibName(outer));
+        ZipEntry entry;
+        ZipFile zip = new ZipFile(outer);
+        try {
+            entry = zip.getEntry(nestedStdlibName(outer));
+        } finally {
+            zip.close();
+        }
+        String userHome = System.getProperty("user.home");
+        File home = DownloadTest.createTempDir();
+        System.setProperty("user.home", home.getPath());
+        try {
+            File extracted = MCKTResolver.ExtractedJarCache.extract(jarUrl);
+            assertEquals(entry.getSize(), extracted.length());
+            CRC32 crc = new CRC32();
+            crc.update(readAll(new FileInputStream(extracted)));
+            assertEquals(entry.getCrc(), crc.getValue());
+            assertTrue(extracted.setLastModified(1000));
+
+            // the second extraction reuses the file
+            assertEquals(extracted, MCKTResolver.ExtractedJarCache.extract(jarUrl));
+            assertEquals(1000, extracted.lastModified());
+        } finally {
+            System.setProperty("user.home", userHome);
+            ScalingTest.deleteRecursively(home);
+        }
+    }
+
+    @Test
+    public void lazyLibraryResolvedAtFirstUse() throws Exception {
+        EnviomentInitializer.init();
+        final File jar = File.createTempFile("mckt-lazy", ".jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new ZipEntry("kotlin/reflect/full/marker.txt"));
+            out.write("reflect".getBytes("UTF-8"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("kotlin/Pair.class"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        final AtomicInteger resolved = new AtomicInteger();
+        URL lazy = MCKTResolver.LazyLibraryURLStreamHandler.INSTANCE.register(MCKTResolver.KotlinLibrary.KotlinReflect, new Callable<URL>() {
+            @Override
+            public URL call() throws Exception {
+                resolved.incrementAndGet();
+                return jar.toURI().toURL();
+            }
+        });
+        URLClassLoader loader = new URLClassLoader(new URL[] { lazy }, null);
+        try {
+            assertNull(loader.getResource("kotlin/Pair.class"));
+            assertEquals(0, resolved.get());
+
+            assertEquals("reflect", new String(readAll(loader.getResourceAsStream("kotlin/reflect/full/marker.txt")), "UTF-8"));
+            assertNull(loader.getResource("kotlin/reflect/full/NotExists.class"));
+            assertEquals(1, resolved.get());
+        } finally {
+            jar.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void lazyLibraryFindsAllResourcesAfterResolved() throws Exception {
+        EnviomentInitializer.init();
+        final File jar = new File("./build/libs/kotlin-reflect.jar");
+        final AtomicInteger resolved = new AtomicInteger();
+        URL lazy = MCKTResolver.LazyLibraryURLStreamHandler.INSTANCE.register(MCKTResolver.KotlinLibrary.KotlinReflect, new Callable<URL>() {
+            @Override
+            public URL call() throws Exception {
+                resolved.incrementAndGet();
+                return jar.toURI().toURL();
+            }
+        });
+        String service = "META-INF/services/kotlin.reflect.jvm.internal.impl.builtins.BuiltInsLoader";
+        URLClassLoader loader = new URLClassLoader(new URL[] { lazy }, null);
+        assertNull(loader.getResource(service));
+        assertEquals(0, resolved.get());
+
+        assertNotNull(loader.getResource("kotlin/reflect/full/KClasses.class"));
+        assertEquals(1, resolved.get());
+        // ServiceLoader of kotlin-reflect needs resources out of kotlin/reflect/full and kotlin/reflect/jvm
+        assertNotNull(loader.getResource(service));
+        assertNotNull(loader.getResource("META-INF/MANIFEST.MF"));
+        assertNull(loader.getResource("not/exists.class"));
+        assertEquals(1, resolved.get());
+    }
+
+    @Test
+    public void scanJarsInJar() throws Exception {
+        EnviomentInitializer.init();
+        byte[] stdlib = readAll(new FileInputStream("./build/libs/kotlin-stdlib.jar"));
+        File stored = File.createTempFile("mckt-contained", ".jar");
+        File deflated = File.createTempFile("mckt-contained", ".jar");
+        try {
+            writeNested(stored, "META-INF/libraries/kotlin-stdlib.jar", stdlib, ZipEntry.STORED);
+            writeNested(deflated, "META-INF/jarjar/kotlin-stdlib.jar", stdlib, ZipEntry.DEFLATED);
+            MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+            for (File mod : new File[] { stored, deflated }) {
+                MCKTResolver.ModScanResult result = resolver.scanMod(mod);
+                assertNotNull(result);
+                assertTrue(result.shadowedLibs.contains(MCKTResolver.KotlinLibrary.KotlinStdlib));
+                assertEquals(Constants.KOTLIN_VERSION_STR, result.shadowedVersion);
+            }
+
+            // jars of MCKT-KT-Jars are not shadowed libraries
+            MCKTResolver.ModScanResult result = resolver.scanMod(new File("./build/libs/manifest-jar.jar"));
+            assertNotNull(result);
+            assertTrue(result.shadowedLibs.isEmpty());
+            assertNull(result.shadowedVersion);
+        } finally {
+            stored.delete();
+            deflated.delete();
+        }
+    }
+
+    static void writeNested(File outer, String name, byte[] jar, int method) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(outer));
+        try {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setMethod(method);
+            if (method == ZipEntry.STORED) {
+                CRC32 crc = new CRC32();
+                crc.update(jar);
+                entry.setSize(jar.length);
+                entry.setCrc(crc.getValue());
+            }
+            out.putNextEntry(entry);
+            out.write(jar);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void assertLoadable(URL url) throws Exception {
+        URLClassLoader loader = new URLClassLoader(new URL[] { url }, null);
+        Class<?> kotlinVersion = loader.loadClass("kotlin.KotlinVersion");
+        assertEquals(Constants.KOTLIN_VERSION_STR, kotlinVersion.getField("CURRENT").get(null).toString());
+        assertNull(loader.getResource("not/exists.class"));
+    }
+
+    /**
+     * @return the name of kotlin-stdlib in {@code MCKT-KT-Jars}. The order of jars depends on gradle.
+     */
+    static String nestedStdlibName(File outer) throws IOException {
+        MCKTResolver.JarProbe probe = MCKTResolver.JarProbe.open(outer);
+        try {
+            Attributes attributes = probe.getManifest().getMainAttributes();
+            List<String> parts = Arrays.asList(attributes.getValue("MCKT-KT-Parts").split(","));
+            return attributes.getValue("MCKT-KT-Jars").split(",")[parts.indexOf("kotlin-stdlib")];
+        } finally {
+            probe.close();
+        }
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MCKTResolver.copy(in, out);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
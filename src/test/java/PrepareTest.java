@@ -0,0 +1,61 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PrepareTest {
+    @AfterEach
+    public void cleanUp() {
+        DownloadTest.deleteTempDirs();
+    }
+
+    @Test
+    public void restorePreparedClassPath() throws Exception {
+        EnviomentInitializer.init();
+        File home = DownloadTest.createTempDir();
+        File root = DownloadTest.createTempDir();
+        File mods = new File(root, "mods");
+        // shaded, shaded-old, manifest and manifest-parts
+        new ModpackGenerator(new File(root, "templates"), new File("./build/libs/manifest-jar.jar"),
+                new File("./build/libs/kotlin-stdlib.jar"), Constants.KOTLIN_VERSION_STR).generate(mods, 4);
+        File repository = DownloadTest.createTempDir();
+        for (MCKTResolver.KotlinLibrary library : MCKTResolver.KotlinLibrary.values()) {
+            DownloadTest.write(new File(repository, library.architectPath(Constants.KOTLIN_VERSION_STR)), library.libName);
+        }
+
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        System.setProperty(MCKTResolver.repositoriesPropName, repository.toURI().toString());
+        try {
+            MCKTResolver.Resolver resolver = new MCKTResolver.Resolver(MCKTResolver.Resolver.modsDirsOf(mods));
+            List<URL> classPath = resolver.prepare();
+            assertTrue(MCKTResolver.ResolveLock.getFile(mods).isFile());
+            assertTrue(new File(MCKTResolver.getCacheBase(), MCKTResolver.ModScanIndex.filePrefix
+                    + MCKTResolver.directoryKey(mods) + MCKTResolver.ModScanIndex.fileSuffix).isFile());
+
+            // nothing can be downloaded at launch
+            ScalingTest.deleteRecursively(repository);
+            // the same directory with other path
+            File sameMods = new File(mods, ".." + File.separator + "." + File.separator + mods.getName());
+            MCKTResolver.Resolver restored = new MCKTResolver.Resolver(MCKTResolver.Resolver.modsDirsOf(sameMods));
+            MCKTResolver.ResolveLock lock = MCKTResolver.ResolveLock.of(
+                    MCKTResolver.ResolveLock.getFile(restored.modsDirs.get(0)), restored.listMods());
+            assertNotNull(lock);
+            List<URL> restoredClassPath = lock.restore(restored);
+            assertNotNull(restoredClassPath);
+            assertEquals(classPath.toString(), restoredClassPath.toString());
+            assertEquals(Constants.KOTLIN_VERSION_STR, lock.version);
+            assertEquals(resolver.libs, restored.libs);
+            assertTrue(restored.libs.contains(MCKTResolver.KotlinLibrary.KotlinReflect));
+        } finally {
+            System.setProperty("user.home", userHome);
+            System.clearProperty(MCKTResolver.repositoriesPropName);
+        }
+    }
+}
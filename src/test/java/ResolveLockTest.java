@@ -0,0 +1,101 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResolveLockTest {
+    @AfterEach
+    public void cleanUp() {
+        DownloadTest.deleteTempDirs();
+    }
+
+    @Test
+    public void fingerprint() throws Exception {
+        EnviomentInitializer.init();
+        File dir = DownloadTest.createTempDir();
+        File mod = new File(dir, "mod.jar");
+        DownloadTest.write(mod, "mod");
+        List<File> mods = Collections.singletonList(mod);
+
+        String fingerprint = MCKTResolver.ResolveLock.fingerprint(mods);
+        assertEquals(fingerprint, MCKTResolver.ResolveLock.fingerprint(mods));
+
+        assertTrue(mod.setLastModified(mod.lastModified() - 10000));
+        assertNotEquals(fingerprint, MCKTResolver.ResolveLock.fingerprint(mods));
+        fingerprint = MCKTResolver.ResolveLock.fingerprint(mods);
+
+        System.setProperty(MCKTResolver.mergeLibrariesPropName, "true");
+        try {
+            assertNotEquals(fingerprint, MCKTResolver.ResolveLock.fingerprint(mods));
+        } finally {
+            System.clearProperty(MCKTResolver.mergeLibrariesPropName);
+        }
+    }
+
+    @Test
+    public void saveAndRestore() throws Exception {
+        EnviomentInitializer.init();
+        File home = DownloadTest.createTempDir();
+        File jar = new File(home, "annotations.jar");
+        DownloadTest.write(jar, "annotations");
+        File outer = new File(home, "mod.jar");
+        NestedJarTest.writeNested(outer, "libs/kotlin-stdlib.jar",
+                NestedJarTest.readAll(new FileInputStream("./build/libs/kotlin-stdlib.jar")), ZipEntry.STORED);
+        URL nestedSource = new URL("jar:" + outer.toURI() + "!/libs/kotlin-stdlib.jar");
+
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        try {
+            MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+            resolver.addVersion(new int[] { 1, 4, 30 });
+            resolver.libs.addAll(EnumSet.of(MCKTResolver.KotlinLibrary.KotlinStdlib,
+                    MCKTResolver.KotlinLibrary.KotlinReflect, MCKTResolver.KotlinLibrary.JetbrainsAnnotation));
+            URL nested = MCKTResolver.NestedJarURLStreamHandler.INSTANCE.register(MCKTResolver.KotlinLibrary.KotlinStdlib, nestedSource);
+            resolver.nestedSources.put(MCKTResolver.KotlinLibrary.KotlinStdlib, nestedSource);
+            resolver.deferredSources.put(MCKTResolver.KotlinLibrary.KotlinReflect, null);
+            URL lazy = resolver.registerDeferred(MCKTResolver.KotlinLibrary.KotlinReflect, null, "1.4.30");
+            List<URL> classPath = Arrays.asList(nested, jar.toURI().toURL(), lazy);
+
+            File lockFile = MCKTResolver.ResolveLock.getFile(new File(home, "mods"));
+            MCKTResolver.ResolveLock lock = new MCKTResolver.ResolveLock(lockFile, "fingerprint");
+            lock.save(resolver, "1.4.30", classPath);
+            assertTrue(lockFile.isFile());
+
+            MCKTResolver.Resolver restored = new MCKTResolver.Resolver();
+            MCKTResolver.ResolveLock restoring = new MCKTResolver.ResolveLock(lockFile, "fingerprint");
+            List<URL> restoredClassPath = restoring.restore(restored);
+            assertNotNull(restoredClassPath);
+            assertEquals(classPath.toString(), restoredClassPath.toString());
+            assertEquals("1.4.30", restoring.version);
+            assertArrayEquals(new int[] { 1, 4, 30 }, restored.version);
+            assertEquals(resolver.libs, restored.libs);
+
+            // other mods
+            assertNull(new MCKTResolver.ResolveLock(lockFile, "other").restore(new MCKTResolver.Resolver()));
+            // other game instance has its own lockfile
+            File otherLockFile = MCKTResolver.ResolveLock.getFile(new File(home, "other/mods"));
+            assertNotEquals(lockFile, otherLockFile);
+            assertNull(new MCKTResolver.ResolveLock(otherLockFile, "fingerprint").restore(new MCKTResolver.Resolver()));
+
+            // the jar is modified
+            assertTrue(jar.setLastModified(jar.lastModified() - 10000));
+            assertNull(new MCKTResolver.ResolveLock(lockFile, "fingerprint").restore(new MCKTResolver.Resolver()));
+        } finally {
+            System.setProperty("user.home", userHome);
+        }
+    }
+}
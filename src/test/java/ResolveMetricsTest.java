@@ -0,0 +1,59 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResolveMetricsTest {
+    @AfterEach
+    public void cleanUp() {
+        DownloadTest.deleteTempDirs();
+    }
+
+    @Test
+    public void phasesOfScan() {
+        EnviomentInitializer.init();
+        MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+        resolver.collectKotlinInMod(new File("./build/libs/kotlin-stdlib.jar"));
+        resolver.collectKotlinInMod(new File("./build/libs/manifest-jar.jar"));
+
+        assertTrue(resolver.metrics.getNanos("scan-mod") > 0);
+        assertTrue(resolver.metrics.getNanos("detect-version") > 0);
+        assertEquals(2, resolver.metrics.phases.get("scan-mod")[1]);
+        assertEquals(1, resolver.metrics.phases.get("detect-version")[1]);
+    }
+
+    @Test
+    public void writeReport() throws Exception {
+        EnviomentInitializer.init();
+        File home = DownloadTest.createTempDir();
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+        try {
+            MCKTResolver.ResolveMetrics metrics = new MCKTResolver.ResolveMetrics();
+            metrics.add("download", 2000000000L, 1);
+            metrics.increment("download-bytes", 1000);
+            metrics.increment("download-bytes", 3000);
+            metrics.put("mods", 3);
+            metrics.finish("1.4.30", EnumSet.of(MCKTResolver.KotlinLibrary.KotlinStdlib, MCKTResolver.KotlinLibrary.KotlinReflect));
+
+            String json = MCKTResolver.readTextFile(new File(MCKTResolver.getCacheBase(), "resolve-metrics.json"));
+            assertNotNull(json);
+            assertTrue(json.startsWith("{\"version\":\"1.4.30\",\"libraries\":[\"kotlin-stdlib\",\"kotlin-reflect\"],"
+                    + "\"phases\":{\"download\":{\"nanos\":2000000000,\"count\":1},\"hash\":{"), json);
+            assertTrue(json.contains("\"total\":{"), json);
+            assertTrue(json.endsWith("\"counters\":{\"download-bytes\":4000,\"mods\":3,\"download-bytes-per-second\":2000}}"), json);
+        } finally {
+            System.setProperty("user.home", userHome);
+        }
+    }
+
+    @Test
+    public void quote() {
+        assertEquals("\"a\\\"b\\\\c\\u000a\"", MCKTResolver.ResolveMetrics.quote("a\"b\\c\n"));
+    }
+}
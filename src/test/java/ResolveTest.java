@@ -2,11 +2,14 @@ import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.jar.JarFile;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 public class ResolveTest {
     @Test
@@ -45,4 +48,39 @@ public class ResolveTest {
 
         assertEquals(Constants.KOTLIN_VERSION_STR, resolver.detectKotlinVersion(new JarFile("./build/libs/kotlin-stdlib.jar")));
     }
+
+    @Test
+    public void readVersionFromClassFile() throws IOException {
+        EnviomentInitializer.init();
+        JarFile jar = new JarFile("./build/libs/kotlin-stdlib.jar");
+        try {
+            assertEquals(Constants.KOTLIN_VERSION_STR,
+                    MCKTResolver.KotlinVersionClassReader.readCurrentVersion(new MCKTResolver.JarFileEntrySource(jar)));
+        } finally {
+            jar.close();
+        }
+    }
+
+    @Test
+    public void parallelScanKeepsOrder() {
+        EnviomentInitializer.init();
+        MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+        File manifestJar = new File("./build/libs/manifest-jar.jar");
+        File stdlibJar = new File("./build/libs/kotlin-stdlib.jar");
+        List<File> mods = Arrays.asList(manifestJar, stdlibJar, manifestJar, stdlibJar);
+
+        System.setProperty(MCKTResolver.scanThreadsPropName, "4");
+        List<MCKTResolver.ModScanResult> results;
+        try {
+            results = resolver.scanMods(mods);
+        } finally {
+            System.clearProperty(MCKTResolver.scanThreadsPropName);
+        }
+
+        assertEquals(mods.size(), results.size());
+        for (int i = 0; i < mods.size(); i++) {
+            assertSame(mods.get(i), results.get(i).mod);
+        }
+        assertEquals(Constants.KOTLIN_VERSION_STR, results.get(1).shadowedVersion);
+    }
 }
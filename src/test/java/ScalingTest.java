@@ -0,0 +1,130 @@
+import net.minecraft.launchwrapper.Launch;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Records time and peak heap usage of scanning mods while the count of mods grows,
+ * and fails if they grow faster than linear.
+ * This is slow so it's only run by {@code ./gradlew scalingTest}.
+ * The counts of mods can be changed with {@code -Dmckt.scaling.sizes=100,1000,2000}.
+ */
+@Tag("scaling")
+public class ScalingTest {
+    // allowed growth of time per mod from the smallest modpack
+    static final double MAX_RATIO = 3.0;
+    // GC makes peak usage noisy for small modpacks
+    static final long MEMORY_SLACK = 64L << 20;
+    static final int RUNS = 3;
+
+    @Test
+    public void resolveScalesLinearly() throws IOException {
+        EnviomentInitializer.init();
+        int[] sizes = parseSizes(System.getProperty("mckt.scaling.sizes", "100,200,400"));
+        File root = DownloadTest.createTempDir();
+        ModpackGenerator generator = new ModpackGenerator(new File(root, "templates"),
+                new File("./build/libs/manifest-jar.jar"), new File("./build/libs/kotlin-stdlib.jar"),
+                Constants.KOTLIN_VERSION_STR);
+
+        File minecraftHome = Launch.minecraftHome;
+        System.setProperty(MCKTResolver.scanIndexPropName, "false");
+        try {
+            // warm up JIT
+            measure(generator, new File(root, "warm-up"), sizes[0]);
+
+            long[] nanos = new long[sizes.length];
+            long[] memory = new long[sizes.length];
+            StringBuilder report = new StringBuilder("mods,nanos,nanosPerMod,peakHeapBytes\n");
+            for (int i = 0; i < sizes.length; i++) {
+                long[] result = measure(generator, new File(root, String.valueOf(sizes[i])), sizes[i]);
+                nanos[i] = result[0];
+                memory[i] = result[1];
+                report.append(sizes[i]).append(',').append(nanos[i]).append(',').append(nanos[i] / sizes[i])
+                        .append(',').append(memory[i]).append('\n');
+            }
+            System.out.print(report);
+            File reportFile = new File("build/reports/scaling.csv");
+            MCKTResolver.writeTextFile(reportFile, report.toString());
+
+            int last = sizes.length - 1;
+            double timeRatio = ((double) nanos[last] / sizes[last]) / ((double) nanos[0] / sizes[0]);
+            assertTrue(timeRatio <= MAX_RATIO, "time per mod grew " + timeRatio + " times:\n" + report);
+            double linearMemory = (double) memory[0] * sizes[last] / sizes[0];
+            assertTrue(memory[last] <= linearMemory * MAX_RATIO + MEMORY_SLACK, "peak heap grew faster than linear:\n" + report);
+        } finally {
+            Launch.minecraftHome = minecraftHome;
+            System.clearProperty(MCKTResolver.scanIndexPropName);
+            deleteRecursively(root);
+        }
+    }
+
+    /**
+     * @return the median time of scanning and the peak heap usage while scanning.
+     */
+    static long[] measure(ModpackGenerator generator, File minecraftHome, int mods) throws IOException {
+        generator.generate(new File(minecraftHome, "mods"), mods);
+        Launch.minecraftHome = minecraftHome;
+        long[] times = new long[RUNS];
+        long peak = 0;
+        for (int i = 0; i < RUNS; i++) {
+            System.gc();
+            long baseline = resetPeakHeap();
+            long start = System.nanoTime();
+            MCKTResolver.Resolver resolver = new MCKTResolver.Resolver();
+            resolver.collectKotlinMods();
+            resolver.candidateDownloads();
+            times[i] = System.nanoTime() - start;
+            peak = Math.max(peak, peakHeap() - baseline);
+        }
+        deleteRecursively(minecraftHome);
+        Arrays.sort(times);
+        return new long[] { times[RUNS / 2], peak };
+    }
+
+    static long resetPeakHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) continue;
+            pool.resetPeakUsage();
+            used += pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    static int[] parseSizes(String sizes) {
+        String[] elements = sizes.split(",");
+        int[] result = new int[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            result[i] = Integer.parseInt(elements[i].trim());
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}